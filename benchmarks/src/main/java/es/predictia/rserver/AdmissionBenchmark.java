@@ -0,0 +1,77 @@
+package es.predictia.rserver;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** Admission throughput of {@link RSessionFactory}: queueing, dispatching and releasing sessions without
+ * connecting to the instances
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class AdmissionBenchmark {
+
+	@Param({"1", "8"})
+	int instances;
+	
+	@Param({"1000", "10000"})
+	int tasks;
+	
+	RSessionFactory factory;
+	
+	@Setup
+	public void setUp() {
+		factory = new RSessionFactory();
+		var available = new ArrayList<RServerInstance>();
+		for(int i = 0; i < instances; i++) {
+			available.add(RServerInstance.builder().url("R://host" + i + ":6311").resources(16).build());
+		}
+		factory.setAvailableInstances(available);
+	}
+	
+	/** Queues all the tasks at once, most of them wait for resources, and releases them in arrival order */
+	@Benchmark
+	@BenchmarkMode(Mode.AverageTime)
+	@OutputTimeUnit(TimeUnit.MILLISECONDS)
+	public int queueAndDrain() {
+		List<SessionTasks> queued = new ArrayList<>(tasks);
+		for(int i = 0; i < tasks; i++) {
+			var sessionTasks = new SessionTasks(RSessionRequest.createDefaultRequest(), null, factory);
+			factory.requestInstance(sessionTasks);
+			queued.add(sessionTasks);
+		}
+		for(SessionTasks sessionTasks : queued) {
+			sessionTasks.getInstanceFuture().join();
+			factory.releaseInstance(sessionTasks);
+		}
+		return queued.size();
+	}
+	
+	/** Threads competing for the instances, each requesting and releasing one session at a time */
+	@Benchmark
+	@Threads(8)
+	@BenchmarkMode(Mode.Throughput)
+	@OutputTimeUnit(TimeUnit.MILLISECONDS)
+	public RServerInstance concurrentRequestRelease() {
+		var sessionTasks = new SessionTasks(RSessionRequest.createDefaultRequest(), null, factory);
+		RServerInstance instance = factory.requestInstance(sessionTasks).join();
+		factory.releaseInstance(sessionTasks);
+		return instance;
+	}
+	
+}
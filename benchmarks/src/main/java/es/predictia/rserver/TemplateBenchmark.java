@@ -0,0 +1,55 @@
+package es.predictia.rserver;
+
+import java.io.IOException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** Building an {@link RScript} from a classpath template, re-reading it with a substitutor for each script or
+ * rendering the cached {@link RScriptTemplate}
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class TemplateBenchmark {
+
+	private static final String TEMPLATE = "/es/predictia/rserver/benchmark-template.R";
+	
+	URL resource;
+	
+	Map<String, String> values;
+	
+	@Setup
+	public void setUp() {
+		resource = TemplateBenchmark.class.getResource(TEMPLATE);
+		values = Map.of("input", "input.csv", "output", "output.csv", "variable", "tas", "threshold", "0.5", "method", "quantile");
+	}
+	
+	@Benchmark
+	public RScript resourceReplacingStream() throws IOException {
+		try(var is = resource.openStream()) {
+			return RScript.builder().resourceReplacing(is, StandardCharsets.UTF_8, values).build();
+		}
+	}
+	
+	@Benchmark
+	public RScript resourceReplacingTemplate() {
+		return RScript.builder().resourceReplacing(resource, StandardCharsets.UTF_8, values).build();
+	}
+	
+}
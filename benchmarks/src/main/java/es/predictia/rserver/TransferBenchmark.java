@@ -0,0 +1,93 @@
+package es.predictia.rserver;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** File transfer throughput of {@link Rsession} against {@link FakeRserve}, measuring the client side of the
+ * protocol over a loopback connection
+ */
+@State(Scope.Benchmark)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class TransferBenchmark {
+
+	@Param({"1024", "1048576", "67108864"})
+	int fileSize;
+	
+	@Param({"false", "true"})
+	boolean compressed;
+	
+	FakeRserve server;
+	
+	Rsession session;
+	
+	File local, received;
+	
+	byte[] gzipped;
+	
+	@Setup
+	public void setUp() throws Exception {
+		server = new FakeRserve();
+		session = new Rsession(RServerInstance.builder().url(server.getUrl()).build());
+		byte[] content = new byte[fileSize];
+		var random = new Random(1);
+		for(int i = 0; i < content.length; i++) {
+			// compressible, like most data files
+			content[i] = (byte) ('0' + random.nextInt(10));
+		}
+		local = File.createTempFile("benchmark-", ".dat");
+		received = File.createTempFile("benchmark-", ".dat");
+		Files.write(local.toPath(), content);
+		var bytes = new ByteArrayOutputStream();
+		try(var os = new GZIPOutputStream(bytes)) {
+			os.write(content);
+		}
+		gzipped = bytes.toByteArray();
+		server.getFiles().put("received.dat", content);
+	}
+	
+	@TearDown
+	public void tearDown() throws IOException {
+		session.close();
+		server.close();
+		local.delete();
+		received.delete();
+	}
+	
+	/** Compressed transfers include gzipping on the client, the R side copy is a no-op on the fake server */
+	@Benchmark
+	public void sendFile() throws IOException {
+		session.sendFile(local, "sent.dat", compressed);
+	}
+	
+	@Benchmark
+	public long receiveFile() throws IOException {
+		if(compressed) {
+			server.getFiles().put("received.dat.gz", gzipped);
+		}
+		session.receiveFile(received, "received.dat", compressed);
+		return received.length();
+	}
+	
+}
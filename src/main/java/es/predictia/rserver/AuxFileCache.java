@@ -0,0 +1,67 @@
+package es.predictia.rserver;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.rosuda.REngine.REXPMismatchException;
+import org.rosuda.REngine.REngineException;
+
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+
+/** Files kept in the {@link RServerInstance#getAuxFileCacheDirectory()} of an instance, named by the SHA-256 of their content.
+ * A file already there is copied into the working directory of the session instead of being uploaded again, so sessions
+ * writing to it do not change the cached file and evicting it does not affect them.
+ * The least recently used files are removed when the directory grows over {@link RServerInstance#getAuxFileCacheMaxBytes()}
+ */
+@Slf4j
+@RequiredArgsConstructor
+public class AuxFileCache {
+
+	@Getter
+	private final RServerInstance instance;
+	
+	private final AtomicLong hits = new AtomicLong(0), misses = new AtomicLong(0);
+	
+	private final FileDigests digests;
+	
+	public long getHits() {
+		return hits.get();
+	}
+	
+	public long getMisses() {
+		return misses.get();
+	}
+	
+	/** Makes the file available in the working directory of the session, uploading it only if it is not cached yet
+	 */
+	void sendFile(Rsession session, File localfile, String remoteFile) throws IOException, REngineException, REXPMismatchException {
+		String hash = digests.digest(localfile);
+		String cacheDirectory = Rsession.quote(instance.getAuxFileCacheDirectory());
+		String target = Rsession.quote(remoteFile);
+		boolean cached = session.eval("local({ "
+			+ "cached <- file.path(" + cacheDirectory + ", '" + hash + "'); "
+			+ "if (file.exists(cached)) { "
+			+ "Sys.setFileTime(cached, Sys.time()); "
+			+ "file.copy(cached, " + target + ", overwrite = TRUE) "
+			+ "} else FALSE })").asInteger() == 1;
+		if(cached) {
+			hits.incrementAndGet();
+			log.debug("File {} found in cache of {} as {}", localfile, instance, hash);
+			return;
+		}
+		misses.incrementAndGet();
+		session.sendFile(localfile, remoteFile);
+		session.eval("local({ "
+			+ "dir.create(" + cacheDirectory + ", recursive = TRUE, showWarnings = FALSE); "
+			+ "partial <- file.path(" + cacheDirectory + ", paste0('" + hash + "', '.', Sys.getpid(), '.part')); "
+			+ "if (file.copy(" + Rsession.quote(remoteFile) + ", partial, overwrite = TRUE)) file.rename(partial, file.path(" + cacheDirectory + ", '" + hash + "')); "
+			+ "cached <- file.info(list.files(" + cacheDirectory + ", pattern = '^[0-9a-f]{64}$', full.names = TRUE)); "
+			+ "cached <- cached[order(cached$mtime, decreasing = TRUE), ]; "
+			+ "invisible(file.remove(rownames(cached)[cumsum(cached$size) > " + instance.getAuxFileCacheMaxBytes() + "])) })");
+		log.debug("File {} added to cache of {} as {}", localfile, instance, hash);
+	}
+	
+}
@@ -0,0 +1,92 @@
+package es.predictia.rserver;
+
+import java.time.LocalDateTime;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.stream.Collectors;
+
+import lombok.AccessLevel;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+/** Capacity held for the first queued request that does not fit anywhere. Requests behind it only backfill the 
+ * reserved instance if they end, according to their {@link RSessionRequest#getRequestedTime()}, before the 
+ * reserved request could start, or if they fit in the resources it leaves spare
+ */
+@AllArgsConstructor(access = AccessLevel.PRIVATE)
+class BackfillReservation {
+
+	@Getter
+	private final SessionTasks tasks;
+	
+	@Getter
+	private final InstanceResources resources;
+	
+	/** When enough resources are expected to be free on the instance for the reserved request */
+	@Getter
+	private final LocalDateTime shadowTime;
+	
+	private int spareResources;
+	
+	/** Reservation on the instance where the request is expected to start first, if any can ever fit it
+	 * @param tasks blocked request
+	 * @param candidates instances eligible for the request
+	 * @param runningSessions sessions holding resources
+	 */
+	static Optional<BackfillReservation> forRequest(SessionTasks tasks, Collection<InstanceResources> candidates, Collection<SessionTasks> runningSessions, LocalDateTime now) {
+		int requestedResources = tasks.getRequestedResources();
+		Map<InstanceResources, List<SessionTasks>> sessionsByInstance = runningSessions.stream()
+			.filter(running -> running.getReservedResources() != null)
+			.collect(Collectors.groupingBy(SessionTasks::getReservedResources));
+		BackfillReservation earliest = null;
+		for(InstanceResources candidate : candidates) {
+			if(requestedResources > candidate.getCapacity()) {
+				continue;
+			}
+			List<SessionTasks> endingSessions = sessionsByInstance.getOrDefault(candidate, Collections.emptyList());
+			endingSessions.sort(Comparator.comparing(running -> expectedEnd(running.getSessionRequest(), running.getSessionRequest().getAcceptedTime())));
+			int freeResources = candidate.getFreeResources();
+			LocalDateTime shadowTime = now;
+			for(SessionTasks ending : endingSessions) {
+				if(freeResources >= requestedResources) {
+					break;
+				}
+				freeResources += ending.getRequestedResources();
+				shadowTime = expectedEnd(ending.getSessionRequest(), ending.getSessionRequest().getAcceptedTime());
+			}
+			if(freeResources < requestedResources) {
+				continue;
+			}
+			if(earliest == null || shadowTime.isBefore(earliest.shadowTime)) {
+				earliest = new BackfillReservation(tasks, candidate, shadowTime, freeResources - requestedResources);
+			}
+		}
+		return Optional.ofNullable(earliest);
+	}
+	
+	/** Whether starting the request now on the instance does not delay the reserved request
+	 */
+	boolean allows(InstanceResources candidate, SessionTasks request, LocalDateTime now) {
+		if(candidate != resources) {
+			return true;
+		}
+		return !expectedEnd(request.getSessionRequest(), now).isAfter(shadowTime) || request.getRequestedResources() <= spareResources;
+	}
+	
+	/** Accounts for a request started on the instance, which uses spare resources if it outlasts the shadow time
+	 */
+	void backfill(InstanceResources candidate, SessionTasks request, LocalDateTime now) {
+		if(candidate == resources && expectedEnd(request.getSessionRequest(), now).isAfter(shadowTime)) {
+			spareResources -= request.getRequestedResources();
+		}
+	}
+	
+	private static LocalDateTime expectedEnd(RSessionRequest request, LocalDateTime start) {
+		return start.plus(request.getRequestedTime(), request.getRequestedTimeUnit().toChronoUnit());
+	}
+	
+}
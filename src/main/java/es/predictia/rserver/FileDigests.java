@@ -0,0 +1,79 @@
+package es.predictia.rserver;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+import lombok.RequiredArgsConstructor;
+
+/** SHA-256 of local files, hashed again only if their size, modification time or file key change. Shared by the
+ * {@link AuxFileCache} of every instance of a {@link RSessionFactory}
+ */
+class FileDigests {
+	
+	private static final int MAX_DIGESTS = 1024;
+	
+	private final Map<Path, FileDigest> digests = Collections.synchronizedMap(new LinkedHashMap<Path, FileDigest>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Path, FileDigest> eldest) {
+			return size() > MAX_DIGESTS;
+		}
+	});
+	
+	String digest(File localfile) throws IOException {
+		Path path = localfile.toPath().toAbsolutePath();
+		BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+		FileDigest digest = digests.get(path);
+		if(digest != null && digest.size == attributes.size() && digest.lastModified.equals(attributes.lastModifiedTime())
+			&& Objects.equals(digest.fileKey, attributes.fileKey())) {
+			return digest.hash;
+		}
+		String hash = sha256(path);
+		digests.put(path, new FileDigest(attributes.size(), attributes.lastModifiedTime(), attributes.fileKey(), hash));
+		return hash;
+	}
+	
+	static String sha256(Path path) throws IOException {
+		MessageDigest messageDigest;
+		try {
+			messageDigest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+		byte[] buffer = new byte[64 * 1024];
+		try(InputStream is = Files.newInputStream(path)) {
+			for(int read = is.read(buffer); read >= 0; read = is.read(buffer)) {
+				messageDigest.update(buffer, 0, read);
+			}
+		}
+		return toHex(messageDigest.digest());
+	}
+	
+	static String toHex(byte[] digest) {
+		StringBuilder hash = new StringBuilder();
+		for(byte b : digest) {
+			hash.append(String.format("%02x", b));
+		}
+		return hash.toString();
+	}
+	
+	@RequiredArgsConstructor
+	private static class FileDigest {
+		private final long size;
+		private final FileTime lastModified;
+		private final Object fileKey;
+		private final String hash;
+	}
+	
+}
@@ -0,0 +1,134 @@
+package es.predictia.rserver;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.OptionalDouble;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+
+import lombok.Data;
+
+/** {@link RServerMetrics} kept in memory, to be polled. Latencies go to histograms with power of two buckets, so
+ * recording does not allocate and percentiles are exact to a factor of two
+ */
+public class InMemoryRServerMetrics implements RServerMetrics {
+
+	private final Map<MetricKey, Histogram> timers = new ConcurrentHashMap<>();
+	
+	private final Map<MetricKey, LongAdder> counters = new ConcurrentHashMap<>();
+	
+	private final Map<MetricKey, DoubleSupplier> gauges = new ConcurrentHashMap<>();
+	
+	@Override
+	public void recordTime(String name, RServerInstance instance, long nanos) {
+		timers.computeIfAbsent(new MetricKey(name, instance), key -> new Histogram()).record(nanos);
+	}
+
+	@Override
+	public void increment(String name, RServerInstance instance, long amount) {
+		counters.computeIfAbsent(new MetricKey(name, instance), key -> new LongAdder()).add(amount);
+	}
+
+	@Override
+	public void gauge(String name, RServerInstance instance, DoubleSupplier value) {
+		gauges.put(new MetricKey(name, instance), value);
+	}
+	
+	public Optional<Histogram> getTimer(String name, RServerInstance instance) {
+		return Optional.ofNullable(timers.get(new MetricKey(name, instance)));
+	}
+	
+	public long getCounter(String name, RServerInstance instance) {
+		LongAdder counter = counters.get(new MetricKey(name, instance));
+		return counter != null ? counter.sum() : 0l;
+	}
+	
+	public OptionalDouble getGauge(String name, RServerInstance instance) {
+		DoubleSupplier gauge = gauges.get(new MetricKey(name, instance));
+		return gauge != null ? OptionalDouble.of(gauge.getAsDouble()) : OptionalDouble.empty();
+	}
+	
+	public Map<MetricKey, Histogram> getTimers() {
+		return Collections.unmodifiableMap(timers);
+	}
+	
+	/** Current value of every counter */
+	public Map<MetricKey, Long> getCounters() {
+		Map<MetricKey, Long> values = new LinkedHashMap<>();
+		counters.forEach((key, counter) -> values.put(key, counter.sum()));
+		return values;
+	}
+	
+	/** Current value of every gauge */
+	public Map<MetricKey, Double> getGauges() {
+		Map<MetricKey, Double> values = new LinkedHashMap<>();
+		gauges.forEach((key, gauge) -> values.put(key, gauge.getAsDouble()));
+		return values;
+	}
+	
+	@Data
+	public static class MetricKey {
+		private final String name;
+		/** Null for metrics not related to an instance */
+		private final RServerInstance instance;
+	}
+	
+	/** Latencies in buckets of power of two nanoseconds
+	 */
+	public static class Histogram {
+		
+		private final AtomicLongArray buckets = new AtomicLongArray(Long.SIZE);
+		private final LongAdder count = new LongAdder(), total = new LongAdder();
+		private final LongAccumulator max = new LongAccumulator(Math::max, 0l);
+		
+		void record(long nanos) {
+			nanos = Math.max(nanos, 0l);
+			buckets.incrementAndGet(Long.SIZE - Long.numberOfLeadingZeros(nanos) - (nanos == 0 ? 0 : 1));
+			count.increment();
+			total.add(nanos);
+			max.accumulate(nanos);
+		}
+		
+		public long getCount() {
+			return count.sum();
+		}
+		
+		public long getTotalNanos() {
+			return total.sum();
+		}
+		
+		public long getMaxNanos() {
+			return max.get();
+		}
+		
+		public double getMeanNanos() {
+			long count = getCount();
+			return count > 0 ? (double) getTotalNanos() / count : 0d;
+		}
+		
+		/** Upper bound of the bucket holding the quantile, never above the max recorded
+		 * @param quantile between 0 and 1
+		 */
+		public long getPercentileNanos(double quantile) {
+			long count = getCount();
+			if(count == 0) {
+				return 0l;
+			}
+			long rank = Math.max(1l, (long) Math.ceil(quantile * count)), seen = 0;
+			for(int i = 0; i < buckets.length(); i++) {
+				seen += buckets.get(i);
+				if(seen >= rank) {
+					return i >= Long.SIZE - 2 ? getMaxNanos() : Math.min((1l << (i + 1)) - 1, getMaxNanos());
+				}
+			}
+			return getMaxNanos();
+		}
+		
+	}
+
+}
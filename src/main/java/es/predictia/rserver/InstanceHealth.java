@@ -0,0 +1,87 @@
+package es.predictia.rserver;
+
+import java.time.LocalDateTime;
+
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+
+/** Connection health of a {@link RServerInstance}, as seen by {@link RSessionFactory}. Consecutive connection
+ * failures open its circuit, so no sessions are sent to it, until a background probe connects again
+ */
+@RequiredArgsConstructor
+@Getter
+public class InstanceHealth {
+
+	public enum CircuitState {
+		/** Sessions are sent to the instance */
+		CLOSED,
+		/** The instance is skipped until the next probe */
+		OPEN,
+		/** A probe is connecting to the instance, still skipped */
+		HALF_OPEN
+	}
+	
+	private final RServerInstance instance;
+	
+	private volatile CircuitState state = CircuitState.CLOSED;
+	
+	private int consecutiveFailures = 0;
+	
+	private long totalFailures = 0;
+	
+	private LocalDateTime lastFailureTime;
+	
+	private String lastError;
+	
+	/** Exponentially weighted average of the time to connect, in milliseconds */
+	private double connectLatency = 0d;
+	
+	/** Wait before the next probe while the circuit is open, in the unit of the policy */
+	private long backoff = 0;
+	
+	private static final double LATENCY_WEIGHT = 0.2;
+	
+	public boolean isAvailable() {
+		return state == CircuitState.CLOSED;
+	}
+	
+	synchronized void recordSuccess(long nanos) {
+		double millis = nanos / 1e6;
+		connectLatency = connectLatency == 0d ? millis : LATENCY_WEIGHT * millis + (1 - LATENCY_WEIGHT) * connectLatency;
+		consecutiveFailures = 0;
+		backoff = 0;
+		state = CircuitState.CLOSED;
+	}
+	
+	/** Counts the failure, opening the circuit if it reaches the threshold of the policy or it was a probe
+	 * @return true if the circuit was opened and the instance has to be probed after {@link #getBackoff()}
+	 */
+	synchronized boolean recordFailure(Throwable e, InstanceHealthPolicy policy) {
+		consecutiveFailures++;
+		totalFailures++;
+		lastFailureTime = LocalDateTime.now();
+		lastError = e.toString();
+		if(state == CircuitState.HALF_OPEN) {
+			backoff = Math.min(Math.max(2 * backoff, policy.getInitialBackoff()), policy.getMaxBackoff());
+			state = CircuitState.OPEN;
+			return true;
+		}else if(state == CircuitState.CLOSED && consecutiveFailures >= policy.getFailureThreshold()) {
+			backoff = policy.getInitialBackoff();
+			state = CircuitState.OPEN;
+			return true;
+		}
+		return false;
+	}
+	
+	/** Moves an open circuit to half open
+	 * @return false if the circuit was not open, so there is nothing to probe
+	 */
+	synchronized boolean startProbe() {
+		if(state != CircuitState.OPEN) {
+			return false;
+		}
+		state = CircuitState.HALF_OPEN;
+		return true;
+	}
+	
+}
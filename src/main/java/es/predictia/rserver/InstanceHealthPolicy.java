@@ -0,0 +1,37 @@
+package es.predictia.rserver;
+
+import java.util.concurrent.TimeUnit;
+
+import lombok.Builder;
+import lombok.Data;
+
+/** When {@link RSessionFactory} stops sending sessions to a failing instance, how it probes it back and how many
+ * instances a session tries to connect to
+ */
+@Data
+@Builder
+public class InstanceHealthPolicy {
+
+	/** Consecutive connection failures opening the circuit of the instance */
+	@Builder.Default
+	private final Integer failureThreshold = 3;
+	
+	/** Wait before the first probe of an instance with the circuit open, doubled after each failed probe */
+	@Builder.Default
+	private final Long initialBackoff = 1l;
+	
+	@Builder.Default
+	private final Long maxBackoff = 60l;
+	
+	@Builder.Default
+	private final TimeUnit backoffUnit = TimeUnit.SECONDS;
+	
+	/** Instances a session tries to connect to before failing, each one only once */
+	@Builder.Default
+	private final Integer maxConnectAttempts = 3;
+	
+	public static InstanceHealthPolicy createDefaultPolicy() {
+		return InstanceHealthPolicy.builder().build();
+	}
+	
+}
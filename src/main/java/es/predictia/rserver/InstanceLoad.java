@@ -0,0 +1,33 @@
+package es.predictia.rserver;
+
+/** Resources in use of a {@link RServerInstance}, as seen by an {@link InstanceSelectionStrategy}
+ */
+public interface InstanceLoad {
+
+	public RServerInstance getInstance();
+	
+	public int getUsedResources();
+	
+	public int getFreeResources();
+	
+	/** Resources the instance currently offers, {@link RServerInstance#getResources()} unless changed at runtime
+	 */
+	public default int getCapacity() {
+		return getInstance().getResources();
+	}
+	
+	/** Fraction of the resources of the instance in use, fully loaded if it offers none
+	 */
+	public default double getLoad() {
+		int capacity = getCapacity();
+		return capacity > 0 ? (double) getUsedResources() / capacity : 1d;
+	}
+	
+	/** {@link RServerInstance#getWeight()} if set, otherwise the current capacity
+	 */
+	public default int getEffectiveWeight() {
+		Integer weight = getInstance().getWeight();
+		return weight != null ? weight : getCapacity();
+	}
+	
+}
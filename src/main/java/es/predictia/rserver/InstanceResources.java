@@ -0,0 +1,116 @@
+package es.predictia.rserver;
+
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import lombok.Getter;
+
+/** Resources in use of a {@link RServerInstance}, reserved and released without locking
+ */
+class InstanceResources implements InstanceLoad {
+
+	@Getter
+	private final RServerInstance instance;
+	
+	private final AtomicInteger usedResources = new AtomicInteger(0);
+	
+	@Getter
+	private final InstanceHealth health;
+	
+	private final AtomicInteger capacity;
+	
+	/** Whether it accepts no new sessions, see {@link RSessionFactory#drainInstance(RServerInstance)} */
+	@Getter
+	private volatile boolean draining = false;
+	
+	/** Whether it is removed once drained */
+	@Getter
+	private volatile boolean removing = false;
+	
+	/** Completed once draining and with no resources in use */
+	private volatile CompletableFuture<Void> drained = CompletableFuture.completedFuture(null);
+	
+	private boolean drainClaimed = false;
+	
+	InstanceResources(RServerInstance instance) {
+		this.instance = instance;
+		this.health = new InstanceHealth(instance);
+		this.capacity = new AtomicInteger(instance.getResources());
+	}
+	
+	@Override
+	public int getCapacity() {
+		return capacity.get();
+	}
+	
+	void setCapacity(int resources) {
+		capacity.set(resources);
+	}
+	
+	/** Stops accepting sessions
+	 * @param remove whether the instance is removed once drained
+	 * @return future completed once the resources in use are released
+	 */
+	synchronized CompletableFuture<Void> drain(boolean remove) {
+		if(!draining) {
+			drained = new CompletableFuture<>();
+			drainClaimed = false;
+			draining = true;
+		}
+		removing |= remove;
+		return drained;
+	}
+	
+	/** Accepts sessions again, the pending drain is never completed */
+	synchronized void resume() {
+		draining = false;
+		removing = false;
+	}
+	
+	/** Takes the completion of the drain if it has no resources in use, so the instance can be removed before it completes
+	 * @return future of the drain, empty if it is not idle or it was already taken
+	 */
+	synchronized Optional<CompletableFuture<Void>> claimDrainIfIdle() {
+		if(!draining || usedResources.get() != 0 || drainClaimed) {
+			return Optional.empty();
+		}
+		drainClaimed = true;
+		return Optional.of(drained);
+	}
+	
+	@Override
+	public int getUsedResources() {
+		return usedResources.get();
+	}
+	
+	@Override
+	public int getFreeResources() {
+		return capacity.get() - usedResources.get();
+	}
+	
+	/** Reserves the resources if the instance has enough of them free and it is not draining
+	 * @param resources
+	 * @return true if the resources were reserved
+	 */
+	public boolean tryReserve(int resources) {
+		while(true) {
+			int used = usedResources.get();
+			if(used + resources > capacity.get()) {
+				return false;
+			}else if(usedResources.compareAndSet(used, used + resources)) {
+				if(draining) {
+					// lost the race with a drain that may have seen these resources in use
+					usedResources.addAndGet(-resources);
+					return false;
+				}
+				return true;
+			}
+		}
+	}
+	
+	public void release(int resources) {
+		usedResources.addAndGet(-resources);
+	}
+	
+}
@@ -0,0 +1,84 @@
+package es.predictia.rserver;
+
+import java.util.Comparator;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** Chooses the instance a session request is run on, among the ones with enough free resources for it
+ */
+@FunctionalInterface
+public interface InstanceSelectionStrategy {
+
+	/**
+	 * @param candidates instances with enough free resources for the request, in the order of {@link RSessionFactory#setAvailableInstances(List)}
+	 * @param request
+	 * @return one of the candidates, or empty to leave the request queued
+	 */
+	public Optional<InstanceLoad> select(List<InstanceLoad> candidates, RSessionRequest request);
+	
+	/** First candidate in the list, filling up instances one after the other
+	 */
+	public static InstanceSelectionStrategy firstFit() {
+		return (candidates, request) -> candidates.stream().findFirst();
+	}
+	
+	/** Candidate with the lowest fraction of its resources in use
+	 */
+	public static InstanceSelectionStrategy leastLoaded() {
+		return (candidates, request) -> candidates.stream().min(Comparator.comparingDouble(InstanceLoad::getLoad));
+	}
+	
+	/** Random candidate, chosen with a probability proportional to its {@link InstanceLoad#getEffectiveWeight()}
+	 */
+	public static InstanceSelectionStrategy weighted() {
+		return (candidates, request) -> {
+			long totalWeight = candidates.stream()
+				.mapToLong(InstanceLoad::getEffectiveWeight)
+				.sum();
+			if(totalWeight <= 0) {
+				return candidates.stream().findFirst();
+			}
+			long target = ThreadLocalRandom.current().nextLong(totalWeight);
+			for(InstanceLoad candidate : candidates) {
+				target -= candidate.getEffectiveWeight();
+				if(target < 0) {
+					return Optional.of(candidate);
+				}
+			}
+			return Optional.empty();
+		};
+	}
+	
+	/** Candidates taken in turns
+	 */
+	public static InstanceSelectionStrategy roundRobin() {
+		AtomicInteger turn = new AtomicInteger(0);
+		return (candidates, request) -> {
+			if(candidates.isEmpty()) {
+				return Optional.empty();
+			}
+			return Optional.of(candidates.get(Math.floorMod(turn.getAndIncrement(), candidates.size())));
+		};
+	}
+	
+	/** Less loaded of two random candidates, close to {@link #leastLoaded()} without always piling on the same instance
+	 */
+	public static InstanceSelectionStrategy powerOfTwoChoices() {
+		return (candidates, request) -> {
+			if(candidates.size() <= 1) {
+				return candidates.stream().findFirst();
+			}
+			ThreadLocalRandom random = ThreadLocalRandom.current();
+			int first = random.nextInt(candidates.size());
+			int second = random.nextInt(candidates.size() - 1);
+			if(second >= first) {
+				second++;
+			}
+			InstanceLoad a = candidates.get(first), b = candidates.get(second);
+			return Optional.of(b.getLoad() < a.getLoad() ? b : a);
+		};
+	}
+	
+}
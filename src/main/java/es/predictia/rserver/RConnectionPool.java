@@ -0,0 +1,275 @@
+package es.predictia.rserver;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Deque;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.rosuda.REngine.REXPMismatchException;
+import org.rosuda.REngine.Rserve.RConnection;
+import org.rosuda.REngine.Rserve.RserveException;
+
+import lombok.Getter;
+import lombok.Setter;
+import lombok.extern.slf4j.Slf4j;
+
+/** Idle {@link RConnection} objects of a {@link RServerInstance}, ready to be reused by new sessions.
+ * At most {@link InstanceResources#getCapacity()} connections are open, counting borrowed, idle and warming ones, and their
+ * workspace is cleaned when they come back.
+ * Connections of a {@link RWarmupProfile} are warmed again after cleaning, and topped up to {@link RWarmupProfile#getWarmSessions()}.
+ */
+@Slf4j
+class RConnectionPool implements AutoCloseable {
+
+	@Getter
+	private final RServerInstance instance;
+	
+	/** Capacity of the instance, which may change at runtime */
+	private final InstanceResources resources;
+	
+	private final Executor executor;
+	
+	RConnectionPool(InstanceResources resources, Executor executor) {
+		this.instance = resources.getInstance();
+		this.resources = resources;
+		this.executor = executor;
+	}
+	
+	private final Deque<PooledConnection> idleConnections = new ConcurrentLinkedDeque<>();
+	
+	private final Map<String, AtomicInteger> warmingConnections = new ConcurrentHashMap<>();
+	
+	/** Open connections of the pool, whether borrowed, idle or being warmed */
+	private final AtomicInteger liveConnections = new AtomicInteger(0);
+	
+	private volatile boolean closed = false;
+	
+	@Setter
+	private ScheduledFuture<?> eviction;
+	
+	/** Idle connection of the profile if any healthy one is available, otherwise a new one
+	 * @param profile warm-up profile of the connection, null for a plain one
+	 */
+	PooledConnection borrow(RWarmupProfile profile) throws RserveException, IOException {
+		for(PooledConnection pooled : idleConnections) {
+			if(!Objects.equals(pooled.getProfile(), profile) || !idleConnections.remove(pooled)) {
+				continue;
+			}
+			if(isHealthy(pooled)) {
+				log.debug("Reusing connection with {}", instance);
+				replenish();
+				return pooled;
+			}
+			discard(pooled);
+		}
+		PooledConnection pooled = PooledConnection.open(instance, profile);
+		liveConnections.incrementAndGet();
+		replenish();
+		return pooled;
+	}
+	
+	/** Cleans the workspace of the connection and keeps it for the next session, closing it if that is not possible.
+	 * Connections of a profile are warmed up again in the background
+	 */
+	void giveBack(PooledConnection pooled) {
+		if(closed || isExpired(pooled, Instant.now()) || liveConnections.get() > resources.getCapacity()) {
+			discard(pooled);
+			replenish();
+			return;
+		}
+		if(pooled.getProfile() == null) {
+			reset(pooled);
+		}else {
+			executor.execute(() -> reset(pooled));
+		}
+	}
+	
+	private void reset(PooledConnection pooled) {
+		try {
+			pooled.cleanWorkspace();
+			if(pooled.getProfile() != null) {
+				pooled.getProfile().warmUp(pooled.getConnection());
+			}
+			pooled.setLastUsed(Instant.now());
+			idleConnections.offerFirst(pooled);
+		}catch(Exception e) {
+			log.warn("Could not clean connection with {}, discarding it: {}", instance, e.getMessage());
+			discard(pooled);
+			replenish();
+		}
+	}
+	
+	/** Closes a connection that is not coming back to the pool, borrowed or not
+	 */
+	void discard(PooledConnection pooled) {
+		pooled.close();
+		liveConnections.decrementAndGet();
+	}
+	
+	/** Opens and warms up connections in the background until every profile has its warm sessions idle, as long as
+	 * there are less than {@link InstanceResources#getCapacity()} connections open
+	 */
+	void replenish() {
+		for(RWarmupProfile profile : instance.getWarmupProfiles()) {
+			AtomicInteger warming = warmingConnections.computeIfAbsent(profile.getName(), name -> new AtomicInteger(0));
+			while(!closed && countIdle(profile) + warming.get() < profile.getWarmSessions() && reserveConnection()) {
+				warming.incrementAndGet();
+				executor.execute(() -> {
+					try {
+						PooledConnection pooled = PooledConnection.open(instance, profile);
+						idleConnections.offerLast(pooled);
+						log.debug("Warmed connection with {} for profile {}", instance, profile.getName());
+					}catch(Exception e) {
+						log.warn("Could not warm connection with {} for profile {}: {}", instance, profile.getName(), e.getMessage());
+						liveConnections.decrementAndGet();
+					}finally {
+						warming.decrementAndGet();
+					}
+				});
+			}
+		}
+	}
+	
+	/** Counts a connection about to be opened if the pool is under its limit */
+	private boolean reserveConnection() {
+		int live;
+		do {
+			live = liveConnections.get();
+			if(live >= resources.getCapacity()) {
+				return false;
+			}
+		} while(!liveConnections.compareAndSet(live, live + 1));
+		return true;
+	}
+	
+	/** Closes the connections idle for longer than {@link RServerInstance#getMaxIdleTime()} or older than {@link RServerInstance#getMaxConnectionLifetime()},
+	 * and idle ones while there are more open than the capacity of the instance. The warm sessions of each profile are
+	 * only closed because of their lifetime or capacity, and replaced as long as there is room for them
+	 */
+	void evict() {
+		Instant now = Instant.now();
+		Duration maxIdleTime = Duration.ofMillis(instance.getMaxIdleTimeUnit().toMillis(instance.getMaxIdleTime()));
+		for(PooledConnection pooled : idleConnections) {
+			boolean idleTooLong = Duration.between(pooled.getLastUsed(), now).compareTo(maxIdleTime) > 0
+				&& (pooled.getProfile() == null || countIdle(pooled.getProfile()) > pooled.getProfile().getWarmSessions());
+			if(isExpired(pooled, now) || idleTooLong || liveConnections.get() > resources.getCapacity()) {
+				if(idleConnections.remove(pooled)) {
+					log.debug("Evicting idle connection with {}", instance);
+					discard(pooled);
+				}
+			}
+		}
+		replenish();
+	}
+	
+	int getIdleConnections() {
+		return idleConnections.size();
+	}
+	
+	int getLiveConnections() {
+		return liveConnections.get();
+	}
+	
+	private long countIdle(RWarmupProfile profile) {
+		return idleConnections.stream()
+			.filter(pooled -> profile.equals(pooled.getProfile()))
+			.count();
+	}
+	
+	private boolean isExpired(PooledConnection pooled, Instant now) {
+		Duration maxLifetime = Duration.ofMillis(instance.getMaxConnectionLifetimeUnit().toMillis(instance.getMaxConnectionLifetime()));
+		return Duration.between(pooled.getCreated(), now).compareTo(maxLifetime) > 0;
+	}
+	
+	private boolean isHealthy(PooledConnection pooled) {
+		Instant now = Instant.now();
+		if(isExpired(pooled, now) || !pooled.getConnection().isConnected()) {
+			return false;
+		}else if(Duration.between(pooled.getLastUsed(), now).compareTo(VALIDATION_BYPASS) < 0) {
+			return true;
+		}
+		try {
+			pooled.getConnection().voidEval("NULL");
+			return true;
+		}catch(RserveException e) {
+			log.debug("Idle connection with {} is broken: {}", instance, e.getMessage());
+			return false;
+		}
+	}
+	
+	/** Connections returned more recently than this are handed out without checking them against the server
+	 */
+	private static final Duration VALIDATION_BYPASS = Duration.ofSeconds(1);
+
+	@Override
+	public void close() {
+		closed = true;
+		if(eviction != null) {
+			eviction.cancel(false);
+		}
+		for(PooledConnection pooled = idleConnections.pollFirst(); pooled != null; pooled = idleConnections.pollFirst()) {
+			discard(pooled);
+		}
+	}
+	
+	@Getter
+	static class PooledConnection {
+		
+		private final RConnection connection;
+		private final RWarmupProfile profile;
+		private final Instant created = Instant.now();
+		private final String workingDirectory;
+		private volatile Instant lastUsed = created;
+		
+		private PooledConnection(RConnection connection, RWarmupProfile profile) throws RserveException {
+			this.connection = connection;
+			this.profile = profile;
+			try {
+				this.workingDirectory = connection.eval("getwd()").asString();
+			}catch(REXPMismatchException e) {
+				connection.close();
+				throw new RserveException(connection, "Could not read working directory", e);
+			}
+		}
+		
+		/** Opens a new connection, warmed up if a profile is given
+		 */
+		static PooledConnection open(RServerInstance instance, RWarmupProfile profile) throws RserveException, IOException {
+			PooledConnection pooled = new PooledConnection(RServerInstance.connect(instance), profile);
+			if(profile != null) {
+				try {
+					profile.warmUp(pooled.getConnection());
+				}catch(RserveException | IOException e) {
+					pooled.close();
+					throw e;
+				}
+			}
+			return pooled;
+		}
+		
+		void setLastUsed(Instant lastUsed) {
+			this.lastUsed = lastUsed;
+		}
+		
+		/** Removes every object of the global environment and every file of the working directory
+		 */
+		void cleanWorkspace() throws RserveException {
+			connection.voidEval("setwd(" + Rsession.quote(workingDirectory) + "); "
+				+ "rm(list = ls(envir = globalenv(), all.names = TRUE), envir = globalenv()); "
+				+ "unlink(list.files(all.files = TRUE, no.. = TRUE), recursive = TRUE)");
+		}
+		
+		void close() {
+			connection.close();
+		}
+		
+	}
+	
+}
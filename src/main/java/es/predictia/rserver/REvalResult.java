@@ -0,0 +1,44 @@
+package es.predictia.rserver;
+
+import org.rosuda.REngine.REXP;
+import org.rosuda.REngine.REngineException;
+
+import lombok.AccessLevel;
+import lombok.Data;
+import lombok.RequiredArgsConstructor;
+
+/** Outcome of one of the expressions of {@link Rsession#evalAll(java.util.List)}, either its value or the message
+ * of the error it raised
+ */
+@Data
+@RequiredArgsConstructor(access = AccessLevel.PRIVATE)
+public class REvalResult {
+
+	private final String expression;
+	
+	private final REXP value;
+	
+	private final String error;
+	
+	static REvalResult success(String expression, REXP value) {
+		return new REvalResult(expression, value, null);
+	}
+	
+	static REvalResult failure(String expression, String error) {
+		return new REvalResult(expression, null, error);
+	}
+	
+	public boolean isError() {
+		return error != null;
+	}
+	
+	/** Value of the expression, or the error it raised as an exception
+	 */
+	public REXP getValueOrThrow() throws REngineException {
+		if(isError()) {
+			throw new REngineException(null, "Error evaluating '" + expression + "': " + error);
+		}
+		return value;
+	}
+	
+}
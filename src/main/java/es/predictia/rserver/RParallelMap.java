@@ -0,0 +1,264 @@
+package es.predictia.rserver;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.IntFunction;
+import java.util.stream.Collectors;
+
+import lombok.AccessLevel;
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+import lombok.Setter;
+import lombok.extern.slf4j.Slf4j;
+
+/** Inputs split into chunks that run in parallel sessions of a {@link RSessionFactory}, see
+ * {@link RSessionFactory#parallelMap(Collection, ChunkFunction, RParallelMapOptions)}. Chunks are cut as the previous
+ * ones finish, sharing the remaining inputs among the sessions the instances have free at that moment, so they get
+ * smaller towards the end and no session is left waiting for a big last chunk
+ */
+@Slf4j
+public class RParallelMap<I, O> {
+	
+	@FunctionalInterface
+	public static interface ChunkFunction<I, O> {
+		O apply(Rsession session, List<I> chunk) throws Throwable;
+	}
+	
+	@FunctionalInterface
+	public static interface ChunkScript<I> {
+		RScript toScript(List<I> chunk) throws IOException;
+	}
+	
+	/** Worker running the chunk and setting its result */
+	@FunctionalInterface
+	static interface ChunkWorkers<I, O> {
+		SimpleRWorker create(Chunk<I, O> chunk) throws Exception;
+	}
+	
+	private final List<I> inputs;
+	
+	private final ChunkWorkers<I, O> chunkWorkers;
+	
+	private final RSessionFactory sessionFactory;
+	
+	private final RParallelMapOptions options;
+	
+	/** Request the free sessions of the factory are counted for, never submitted */
+	private final RSessionRequest sizingRequest;
+	
+	private final List<Chunk<I, O>> chunks = new ArrayList<>(), completed = new ArrayList<>(), running = new ArrayList<>();
+	
+	private final CompletableFuture<List<O>> results = new CompletableFuture<>();
+	
+	private int cursor = 0;
+	
+	private boolean cancelled = false;
+	
+	private Throwable failure;
+	
+	RParallelMap(Collection<I> inputs, ChunkWorkers<I, O> chunkWorkers, RSessionFactory sessionFactory, RParallelMapOptions options) {
+		this.inputs = Collections.unmodifiableList(new ArrayList<>(inputs));
+		this.chunkWorkers = chunkWorkers;
+		this.sessionFactory = sessionFactory;
+		this.options = options;
+		this.sizingRequest = options.getSessionRequests().get();
+	}
+	
+	/** Results of the chunks in the order of their inputs, completed exceptionally with the first failure once all the
+	 * chunks finish, or right away if {@link RParallelMapOptions#getCancelOnFailure()}
+	 */
+	public CompletableFuture<List<O>> getResults() {
+		return results;
+	}
+	
+	/** Chunks in the order of their inputs, {@link Iterator#hasNext()} blocks until the next one finishes
+	 */
+	public Iterator<Chunk<I, O>> inOrder() {
+		return new ChunkIterator(index -> index < chunks.size() && chunks.get(index).isDone() ? chunks.get(index) : null);
+	}
+	
+	/** Chunks in the order they finish, {@link Iterator#hasNext()} blocks until the next one does
+	 */
+	public Iterator<Chunk<I, O>> asCompleted() {
+		return new ChunkIterator(index -> index < completed.size() ? completed.get(index) : null);
+	}
+	
+	/** Stops cutting chunks and cancels the ones waiting or running, aborting their sessions
+	 */
+	public synchronized void cancel() {
+		if(cancelled) {
+			return;
+		}
+		log.debug("Cancelling {} running chunks", running.size());
+		cancelled = true;
+		for(Chunk<I, O> chunk : new ArrayList<>(running)) {
+			chunk.future.cancel(true);
+		}
+		results.cancel(false);
+		notifyAll();
+	}
+	
+	public synchronized boolean isDone() {
+		return running.isEmpty() && (cancelled || cursor == inputs.size());
+	}
+	
+	/** Cuts new chunks for the sessions free now, and at least one to replace a finished chunk or to start
+	 */
+	synchronized void launchChunks(boolean replacing) {
+		if(cancelled) {
+			return;
+		}
+		int waiting = 0;
+		for(Chunk<I, O> chunk : running) {
+			if(chunk.worker != null && !chunk.worker.isStarted()) {
+				waiting++;
+			}
+		}
+		int free = Math.max(0, sessionFactory.getFreeSessions(sizingRequest) - waiting);
+		int launch = Math.max(free, replacing || running.isEmpty() ? 1 : 0);
+		int sessions = Math.max(1, running.size() + launch);
+		for(int i = 0; i < launch && cursor < inputs.size() && !cancelled; i++) {
+			launchChunk(chunkSize(sessions));
+		}
+		checkDone();
+		notifyAll();
+	}
+	
+	private int chunkSize(int sessions) {
+		int remaining = inputs.size() - cursor;
+		long size = -Math.floorDiv(-remaining, (long) sessions * options.getChunksPerSession());
+		size = Math.min(Math.max(size, options.getMinChunkSize()), options.getMaxChunkSize());
+		return (int) Math.min(Math.max(size, 1), remaining);
+	}
+	
+	private void launchChunk(int size) {
+		var chunk = new Chunk<I, O>(chunks.size(), cursor, inputs.subList(cursor, cursor + size));
+		log.debug("Launching chunk {} of {} inputs from {}", chunk.index, size, cursor);
+		cursor += size;
+		chunks.add(chunk);
+		running.add(chunk);
+		try {
+			chunk.worker = chunkWorkers.create(chunk);
+			chunk.future = chunk.worker.run(sessionFactory, options.getSessionRequests().get());
+		} catch (Exception e) {
+			chunk.future = CompletableFuture.failedFuture(e);
+		}
+		chunk.future.whenCompleteAsync((worker, e) -> chunkCompleted(chunk, e), sessionFactory.getExecutorService());
+	}
+	
+	private synchronized void chunkCompleted(Chunk<I, O> chunk, Throwable e) {
+		running.remove(chunk);
+		if(e != null) {
+			chunk.error = unwrap(e);
+			if(!cancelled && failure == null) {
+				log.warn("Chunk {} failed: {}", chunk.index, chunk.error.getMessage());
+				failure = chunk.error;
+				if(options.getCancelOnFailure()) {
+					results.completeExceptionally(failure);
+					cancel();
+				}
+			}
+		}
+		chunk.done = true;
+		completed.add(chunk);
+		launchChunks(true);
+		checkDone();
+		notifyAll();
+	}
+	
+	private void checkDone() {
+		if(!isDone() || results.isDone()) {
+			return;
+		}else if(failure != null) {
+			results.completeExceptionally(failure);
+		}else {
+			results.complete(chunks.stream().map(Chunk::getResult).collect(Collectors.toList()));
+		}
+	}
+	
+	private static Throwable unwrap(Throwable e) {
+		while((e instanceof CompletionException || e.getClass() == RuntimeException.class) && e.getCause() != null) {
+			e = e.getCause();
+		}
+		return e;
+	}
+	
+	/** Inputs of the map run in the same session, and how it went once it is done */
+	@Getter
+	@RequiredArgsConstructor(access = AccessLevel.PACKAGE)
+	public static class Chunk<I, O> {
+	
+		/** Position among the chunks */
+		private final int index;
+	
+		/** Position of the first input of the chunk among all the inputs */
+		private final int offset;
+	
+		private final List<I> inputs;
+	
+		@Setter(AccessLevel.PACKAGE)
+		private volatile O result;
+	
+		private volatile Throwable error;
+	
+		private volatile boolean done = false;
+	
+		@Getter(AccessLevel.NONE)
+		private SimpleRWorker worker;
+	
+		@Getter(AccessLevel.NONE)
+		private CompletableFuture<RWorker> future;
+	
+		public boolean isFailed() {
+			return error != null;
+		}
+	
+	}
+	
+	/** Iterates the chunks found by position, waiting for them until the map is done */
+	@RequiredArgsConstructor
+	private class ChunkIterator implements Iterator<Chunk<I, O>> {
+	
+		private final IntFunction<Chunk<I, O>> chunkAt;
+	
+		private int next = 0;
+	
+		@Override
+		public boolean hasNext() {
+			synchronized(RParallelMap.this) {
+				while(chunkAt.apply(next) == null) {
+					if(isDone() && next >= chunks.size()) {
+						return false;
+					}
+					try {
+						RParallelMap.this.wait();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						throw new CancellationException("Interrupted while waiting for chunks");
+					}
+				}
+				return true;
+			}
+		}
+	
+		@Override
+		public Chunk<I, O> next() {
+			if(!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			synchronized(RParallelMap.this) {
+				return chunkAt.apply(next++);
+			}
+		}
+	
+	}
+	
+}
@@ -0,0 +1,39 @@
+package es.predictia.rserver;
+
+import java.util.function.Supplier;
+
+import lombok.Builder;
+import lombok.Data;
+
+/** How {@link RSessionFactory#parallelMap(java.util.Collection, RParallelMap.ChunkFunction, RParallelMapOptions)} splits
+ * the inputs into chunks and requests their sessions
+ */
+@Data
+@Builder
+public class RParallelMapOptions {
+
+	/** Request of the session of each chunk, a new one each time as requests hold the state of their session */
+	@Builder.Default
+	private final Supplier<RSessionRequest> sessionRequests = RSessionRequest::createDefaultRequest;
+	
+	/** Chunks each free session gets of the remaining inputs when a chunk is cut. More of them balance better
+	 * uneven chunks, fewer of them save sessions
+	 */
+	@Builder.Default
+	private final Integer chunksPerSession = 2;
+	
+	@Builder.Default
+	private final Integer minChunkSize = 1;
+	
+	@Builder.Default
+	private final Integer maxChunkSize = Integer.MAX_VALUE;
+	
+	/** Whether the chunks still waiting or running are cancelled once one fails */
+	@Builder.Default
+	private final Boolean cancelOnFailure = false;
+	
+	public static RParallelMapOptions createDefaultOptions() {
+		return RParallelMapOptions.builder().build();
+	}
+	
+}
@@ -5,11 +5,11 @@ import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.net.URL;
 import java.nio.charset.Charset;
-import java.nio.charset.StandardCharsets;
-import java.nio.file.Files;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.text.StringSubstitutor;
 
@@ -36,8 +36,36 @@ public class RScript {
 	@Singular
 	private final List<File> resultFiles;
 	
+	/** Whether aux files go through the cache of the instance, see {@link RServerInstance#getAuxFileCacheDirectory()}
+	 */
+	@Builder.Default
+	private final Boolean cacheAuxFiles = false;
+	
+	/** Whether aux and result files are gzipped while they are transferred. If not set, the ones bigger than
+	 * {@link RServerInstance#getCompressionThreshold()} are
+	 */
+	private final Boolean compressTransfers;
+	
+	/** Whether the result files can be taken from the {@link RSessionFactory#setResultCache(RScriptResultCache)}, if there is one,
+	 * when the script has run before with the same lines and aux file contents. Turn it off for scripts that are not deterministic
+	 */
+	@Builder.Default
+	private final Boolean memoizeResults = true;
+	
+	/** How long cached result files are valid, see {@link #getMemoizeResults()}. Until they are evicted if not set
+	 */
+	private final Long resultTtl;
+	
+	@Builder.Default
+	private final TimeUnit resultTtlUnit = TimeUnit.HOURS;
+	
 	public static class RScriptBuilder {
 		
+		public RScriptBuilder resultTtlAndUnit(Long resultTtl, TimeUnit unit) {
+			return resultTtl(resultTtl)
+				.resultTtlUnit(unit);
+		}
+		
 		public RScriptBuilder lineReplacing(String line, Map<String, String> valuesMap){
 			return line(new StringSubstitutor(valuesMap).replace(line));
 		}
@@ -63,28 +91,49 @@ public class RScript {
 			return builder;
 		}
 		
+		/** Same as {@link #resourceReplacing(InputStream, Charset, Map)}, but the resource is parsed once and its
+		 * {@link RScriptTemplate} reused for next scripts
+		 */
+		public RScriptBuilder resourceReplacing(URL resource, Charset cs, Map<String, String> valuesMap) {
+			return template(RScriptTemplate.forResource(resource, cs), valuesMap);
+		}
+		
+		public RScriptBuilder template(RScriptTemplate template, Map<String, String> valuesMap) {
+			return lines(template.render(valuesMap));
+		}
+		
 	}
 	
-	/** Worker that loads aux files, sources the lines, retrieves the result files and finally cleanups
+	/** Worker that loads aux files, sources the lines, retrieves the result files and finally cleanups. Lines are
+	 * streamed from memory, nothing is written to the local filesystem. When run with a {@link RSessionFactory} having
+	 * a {@link RScriptResultCache}, results of a previous run are copied instead if possible, see {@link #getMemoizeResults()}
 	 * @return
 	 * @throws IOException
 	 */
 	public RWorker toWorker() throws IOException {
-		var scriptFile = File.createTempFile("script-", ".R");
-		Files.write(scriptFile.toPath(), getLines(), StandardCharsets.UTF_8);
-		log.debug("Writing script to: {}", scriptFile);
 		getLines().forEach(log::debug);
-		return new SimpleRWorker(s -> {
-			for(File auxFile : auxFiles) {
+		return new ScriptRWorker(this);
+	}
+	
+	void runWithinSession(Rsession s) throws Throwable {
+		for(File auxFile : auxFiles) {
+			if(Boolean.TRUE.equals(cacheAuxFiles)) {
+				s.sendCachedFile(auxFile);
+			}else if(compressTransfers != null) {
+				s.sendFile(auxFile, auxFile.getName(), compressTransfers);
+			}else {
 				s.sendFile(auxFile);
 			}
-			s.source(scriptFile);
-			s.removeFile(scriptFile.getName());
-			for(File resultFile : resultFiles) {
-				s.receiveFile(resultFile, resultFile.getName());;
-				s.removeFile(resultFile.getName());
+		}
+		s.source(getLines());
+		for(File resultFile : resultFiles) {
+			if(compressTransfers != null) {
+				s.receiveFile(resultFile, resultFile.getName(), compressTransfers);
+			}else {
+				s.receiveFile(resultFile, resultFile.getName());
 			}
-		}, () -> scriptFile.delete());
+			s.removeFile(resultFile.getName());
+		}
 	}
 	
 }
@@ -0,0 +1,210 @@
+package es.predictia.rserver;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+/** Result files of {@link RScript} runs kept in a local directory, so running again a script with the same lines and aux
+ * file contents just copies them, without requesting a session, see {@link RSessionFactory#setResultCache(RScriptResultCache)}.
+ * Each run is an entry directory named by the SHA-256 of the script, whose modification time is updated on every hit;
+ * the least recently used entries are removed when the directory grows over {@link #getMaxBytes()}
+ */
+@Slf4j
+public class RScriptResultCache {
+	
+	private static final String EXPIRES_FILE = "expires", TEMP_SUFFIX = ".tmp";
+	
+	@Getter
+	private final Path directory;
+	
+	@Getter
+	private final long maxBytes;
+	
+	private final AtomicLong hits = new AtomicLong(0), misses = new AtomicLong(0);
+	
+	public RScriptResultCache(Path directory, long maxBytes) throws IOException {
+		this.directory = Files.createDirectories(directory);
+		this.maxBytes = maxBytes;
+	}
+	
+	public long getHits() {
+		return hits.get();
+	}
+	
+	public long getMisses() {
+		return misses.get();
+	}
+	
+	/** Hash of the lines, the names and content of the aux files and the names of the result files of the script
+	 */
+	String key(RScript script) throws IOException {
+		MessageDigest messageDigest;
+		try {
+			messageDigest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+		for(String line : script.getLines()) {
+			messageDigest.update(line.getBytes(StandardCharsets.UTF_8));
+			messageDigest.update((byte) '\n');
+		}
+		for(File auxFile : script.getAuxFiles()) {
+			messageDigest.update((byte) 0);
+			messageDigest.update(auxFile.getName().getBytes(StandardCharsets.UTF_8));
+			messageDigest.update((byte) 0);
+			messageDigest.update(FileDigests.sha256(auxFile.toPath()).getBytes(StandardCharsets.US_ASCII));
+		}
+		for(File resultFile : script.getResultFiles()) {
+			messageDigest.update((byte) 1);
+			messageDigest.update(resultFile.getName().getBytes(StandardCharsets.UTF_8));
+		}
+		return FileDigests.toHex(messageDigest.digest());
+	}
+	
+	/** Copies the cached result files of the key to the result files of the script
+	 * @return false if there is no entry for the key or it has expired
+	 */
+	boolean copyResults(String key, RScript script) throws IOException {
+		Path entry = directory.resolve(key);
+		try {
+			long expires = Long.parseLong(Files.readString(entry.resolve(EXPIRES_FILE)).trim());
+			if(System.currentTimeMillis() > expires) {
+				log.debug("Results of {} expired", key);
+				delete(entry);
+				misses.incrementAndGet();
+				return false;
+			}
+			Files.setLastModifiedTime(entry, FileTime.fromMillis(System.currentTimeMillis()));
+			List<File> resultFiles = script.getResultFiles();
+			for(int i = 0; i < resultFiles.size(); i++) {
+				Files.copy(entry.resolve(Integer.toString(i)), resultFiles.get(i).toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+		} catch (NoSuchFileException e) {
+			misses.incrementAndGet();
+			return false;
+		}
+		hits.incrementAndGet();
+		log.debug("Results of {} copied from cache", key);
+		return true;
+	}
+	
+	/** Adds the result files of the script to the cache, expiring after {@link RScript#getResultTtl()} if it has one,
+	 * and removes the least recently used entries if needed
+	 */
+	void storeResults(String key, RScript script) throws IOException {
+		Path temp = directory.resolve(key + "." + UUID.randomUUID() + TEMP_SUFFIX);
+		Files.createDirectory(temp);
+		try {
+			List<File> resultFiles = script.getResultFiles();
+			for(int i = 0; i < resultFiles.size(); i++) {
+				Files.copy(resultFiles.get(i).toPath(), temp.resolve(Integer.toString(i)));
+			}
+			long expires = script.getResultTtl() == null ? Long.MAX_VALUE
+				: System.currentTimeMillis() + script.getResultTtlUnit().toMillis(script.getResultTtl());
+			Files.writeString(temp.resolve(EXPIRES_FILE), Long.toString(expires));
+			delete(directory.resolve(key));
+			Files.move(temp, directory.resolve(key), StandardCopyOption.ATOMIC_MOVE);
+			log.debug("Results of {} added to cache", key);
+		} catch (FileAlreadyExistsException | DirectoryNotEmptyException e) {
+			log.debug("Results of {} stored meanwhile", key);
+		} finally {
+			delete(temp);
+		}
+		evict();
+	}
+	
+	/** Total size of the cached result files */
+	public long getSize() throws IOException {
+		long size = 0;
+		for(Path entry : entries()) {
+			size += size(entry);
+		}
+		return size;
+	}
+	
+	/** Removes all the entries */
+	public synchronized void clear() throws IOException {
+		for(Path entry : entries()) {
+			delete(entry);
+		}
+	}
+	
+	private synchronized void evict() throws IOException {
+		var entries = new ArrayList<Path>(entries());
+		entries.sort(Comparator.comparing(RScriptResultCache::lastModified).reversed());
+		long size = 0;
+		for(Path entry : entries) {
+			size += size(entry);
+			if(size > maxBytes) {
+				log.debug("Removing results of {} from cache", entry.getFileName());
+				delete(entry);
+			}
+		}
+	}
+	
+	private List<Path> entries() throws IOException {
+		try(Stream<Path> paths = Files.list(directory)) {
+			return paths
+				.filter(Files::isDirectory)
+				.filter(path -> !path.getFileName().toString().endsWith(TEMP_SUFFIX))
+				.collect(Collectors.toList());
+		}
+	}
+	
+	private static long lastModified(Path entry) {
+		try {
+			return Files.getLastModifiedTime(entry).toMillis();
+		} catch (IOException e) {
+			return 0l;
+		}
+	}
+	
+	private static long size(Path entry) throws IOException {
+		try(Stream<Path> files = Files.list(entry)) {
+			return files.mapToLong(file -> {
+				try {
+					return Files.size(file);
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			}).sum();
+		} catch (NoSuchFileException | UncheckedIOException e) {
+			return 0l;
+		}
+	}
+	
+	private static void delete(Path entry) throws IOException {
+		if(!Files.exists(entry)) {
+			return;
+		}
+		try(Stream<Path> files = Files.list(entry)) {
+			for(Path file : files.collect(Collectors.toList())) {
+				Files.deleteIfExists(file);
+			}
+		} catch (NoSuchFileException e) {
+			return;
+		}
+		Files.deleteIfExists(entry);
+	}
+	
+}
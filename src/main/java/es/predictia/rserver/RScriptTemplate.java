@@ -0,0 +1,157 @@
+package es.predictia.rserver;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import lombok.RequiredArgsConstructor;
+
+/** R lines parsed once into literal and <code>${key}</code> / <code>${key:-default}</code> segments, so rendering
+ * them for each job is just concatenation. <code>$${</code> escapes a literal <code>${</code>, and keys not found in
+ * the values map without default are left as they are, as {@link org.apache.commons.text.StringSubstitutor} does.
+ * Replaced values are not substituted again
+ */
+public class RScriptTemplate {
+
+	private static final String PREFIX = "${", SUFFIX = "}", DEFAULT_DELIMITER = ":-";
+	private static final char ESCAPE = '$';
+
+	private static final Map<String, RScriptTemplate> RESOURCE_TEMPLATES = new ConcurrentHashMap<>();
+
+	private final List<Segment[]> lines;
+
+	private RScriptTemplate(List<Segment[]> lines) {
+		this.lines = lines;
+	}
+
+	/** Template of the classpath resource, parsed the first time it is requested
+	 * @param resource location of the resource, see {@link Class#getResource(String)}
+	 * @param cs charset of the resource
+	 */
+	public static RScriptTemplate forResource(URL resource, Charset cs) {
+		if(resource == null) {
+			throw new IllegalArgumentException("Resource not found");
+		}
+		return RESOURCE_TEMPLATES.computeIfAbsent(resource.toExternalForm() + "#" + cs.name(), key -> {
+			try(var is = resource.openStream()) {
+				return compile(is, cs);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		});
+	}
+
+	/** Parses the lines of the stream, not cached
+	 */
+	public static RScriptTemplate compile(InputStream is, Charset cs) throws IOException {
+		var lines = new ArrayList<Segment[]>();
+		try(var reader = new BufferedReader(new InputStreamReader(is, cs))) {
+			for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+				lines.add(parse(line));
+			}
+		}
+		return new RScriptTemplate(lines);
+	}
+
+	/** Parses the given lines, not cached
+	 */
+	public static RScriptTemplate compile(List<String> lines) {
+		var parsed = new ArrayList<Segment[]>(lines.size());
+		for(String line : lines) {
+			parsed.add(parse(line));
+		}
+		return new RScriptTemplate(parsed);
+	}
+
+	/** Lines with the placeholders replaced by the values map
+	 */
+	public List<String> render(Map<String, String> valuesMap) {
+		var rendered = new ArrayList<String>(lines.size());
+		for(Segment[] line : lines) {
+			rendered.add(render(line, valuesMap));
+		}
+		return rendered;
+	}
+
+	public int size() {
+		return lines.size();
+	}
+
+	private static String render(Segment[] line, Map<String, String> valuesMap) {
+		if(line.length == 1 && line[0].key == null) {
+			return line[0].text;
+		}
+		int length = 0;
+		for(Segment segment : line) {
+			length += segment.text.length();
+		}
+		var sb = new StringBuilder(length + 16 * line.length);
+		for(Segment segment : line) {
+			if(segment.key == null) {
+				sb.append(segment.text);
+			}else {
+				String value = valuesMap.get(segment.key);
+				if(value == null) {
+					value = segment.defaultValue;
+				}
+				sb.append(value != null ? value : segment.text);
+			}
+		}
+		return sb.toString();
+	}
+
+	static Segment[] parse(String line) {
+		var segments = new ArrayList<Segment>();
+		var literal = new StringBuilder();
+		int pos = 0;
+		while(pos < line.length()) {
+			int start = line.indexOf(PREFIX, pos);
+			if(start < 0) {
+				literal.append(line, pos, line.length());
+				break;
+			}
+			if(start > 0 && line.charAt(start - 1) == ESCAPE) {
+				literal.append(line, pos, start - 1).append(PREFIX);
+				pos = start + PREFIX.length();
+				continue;
+			}
+			int end = line.indexOf(SUFFIX, start + PREFIX.length());
+			if(end < 0) {
+				literal.append(line, pos, line.length());
+				break;
+			}
+			literal.append(line, pos, start);
+			if(literal.length() > 0) {
+				segments.add(new Segment(literal.toString(), null, null));
+				literal.setLength(0);
+			}
+			String variable = line.substring(start + PREFIX.length(), end);
+			int delimiter = variable.indexOf(DEFAULT_DELIMITER);
+			segments.add(delimiter < 0
+				? new Segment(line.substring(start, end + 1), variable, null)
+				: new Segment(line.substring(start, end + 1), variable.substring(0, delimiter), variable.substring(delimiter + DEFAULT_DELIMITER.length())));
+			pos = end + SUFFIX.length();
+		}
+		if(literal.length() > 0 || segments.isEmpty()) {
+			segments.add(new Segment(literal.toString(), null, null));
+		}
+		return segments.toArray(new Segment[0]);
+	}
+
+	/** Literal text if key is null, otherwise the placeholder and its original text */
+	@RequiredArgsConstructor
+	static class Segment {
+		private final String text;
+		private final String key;
+		private final String defaultValue;
+	}
+
+}
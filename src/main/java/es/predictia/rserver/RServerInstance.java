@@ -1,10 +1,15 @@
 package es.predictia.rserver;
 
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
 import org.rosuda.REngine.Rserve.RConnection;
 import org.rosuda.REngine.Rserve.RserveException;
 
 import lombok.Builder;
 import lombok.Data;
+import lombok.Singular;
 
 @Data
 @Builder
@@ -16,6 +21,63 @@ public class RServerInstance {
 	@Builder.Default
 	private final Integer resources = 1;
 	
+	/** Share of the sessions given to the instance by {@link InstanceSelectionStrategy#weighted()}, its current capacity if not set
+	 */
+	private final Integer weight;
+	
+	/** Whether connections are kept open and reused by the following sessions instead of being closed
+	 */
+	@Builder.Default
+	private final Boolean pooledConnections = false;
+	
+	@Builder.Default
+	private final Long maxIdleTime = 5l;
+	
+	@Builder.Default
+	private final TimeUnit maxIdleTimeUnit = TimeUnit.MINUTES;
+	
+	@Builder.Default
+	private final Long maxConnectionLifetime = 1l;
+	
+	@Builder.Default
+	private final TimeUnit maxConnectionLifetimeUnit = TimeUnit.HOURS;
+	
+	/** Files at least this big, in bytes, are gzipped while they are transferred. Never if not set
+	 */
+	private final Long compressionThreshold;
+	
+	/** Directory of the Rserve host where aux files are cached by content, see {@link RScript#getCacheAuxFiles()}. No cache if not set
+	 */
+	private final String auxFileCacheDirectory;
+	
+	@Builder.Default
+	private final Long auxFileCacheMaxBytes = 10l * 1024 * 1024 * 1024;
+	
+	/** Profiles whose connections are kept warmed and ready, see {@link RSessionRequest#getWarmupProfile()}
+	 */
+	@Singular
+	private final List<RWarmupProfile> warmupProfiles;
+	
+	public Optional<RWarmupProfile> getWarmupProfile(String name) {
+		return warmupProfiles.stream()
+			.filter(profile -> profile.getName().equals(name))
+			.findFirst();
+	}
+	
+	public static class RServerInstanceBuilder{
+		
+		public RServerInstanceBuilder maxIdleTimeAndUnit(Long maxIdleTime, TimeUnit unit) {
+			return maxIdleTime(maxIdleTime)
+				.maxIdleTimeUnit(unit);
+		}
+		
+		public RServerInstanceBuilder maxConnectionLifetimeAndUnit(Long maxConnectionLifetime, TimeUnit unit) {
+			return maxConnectionLifetime(maxConnectionLifetime)
+				.maxConnectionLifetimeUnit(unit);
+		}
+		
+	}
+	
 	static RConnection connect(RServerInstance instance) throws RserveException {
 		String hostPort = hostPort(instance);
 		String userPass = userPass(instance);
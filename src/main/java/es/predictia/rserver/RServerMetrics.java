@@ -0,0 +1,80 @@
+package es.predictia.rserver;
+
+import java.util.function.DoubleSupplier;
+
+/** Receives the metrics published by {@link RSessionFactory} and {@link Rsession}, tagged by instance. Implementations
+ * must be thread safe and fast, as they are called on the session paths. See {@link InMemoryRServerMetrics} to poll them
+ * or bridge them to other monitoring systems
+ */
+public interface RServerMetrics {
+
+	/** Time from request to acceptance of a session, instance it was accepted on */
+	public static final String QUEUE_WAIT = "rserver.queue.wait";
+	
+	/** Requests failed for waiting in queue longer than {@link RSessionRequest#getMaxQueueTime()}, without instance */
+	public static final String QUEUE_TIMEOUTS = "rserver.queue.timeouts";
+	
+	/** Requests waiting for an instance, without instance */
+	public static final String QUEUE_SIZE = "rserver.queue.size";
+	
+	/** Time to open and login a connection, or to borrow it from the pool */
+	public static final String CONNECT = "rserver.session.connect";
+	
+	/** Sessions that could not connect to the instance */
+	public static final String CONNECT_FAILURES = "rserver.session.connect.failures";
+	
+	/** 1 if the instance gets sessions, 0 while its circuit is open, see {@link InstanceHealth} */
+	public static final String AVAILABLE = "rserver.instance.available";
+	
+	/** Time of each {@link Rsession#eval(String)} */
+	public static final String EVAL = "rserver.session.eval";
+	
+	/** Bytes sent to files of the instance */
+	public static final String BYTES_SENT = "rserver.transfer.sent";
+	
+	/** Bytes received from files of the instance */
+	public static final String BYTES_RECEIVED = "rserver.transfer.received";
+	
+	/** Resources in use of the instance */
+	public static final String RESOURCES_USED = "rserver.instance.used";
+	
+	/** Fraction of the resources of the instance in use */
+	public static final String LOAD = "rserver.instance.load";
+	
+	/** Records a latency
+	 * @param instance tag, null for metrics not related to an instance
+	 */
+	public void recordTime(String name, RServerInstance instance, long nanos);
+	
+	/** Adds to a counter
+	 * @param instance tag, null for metrics not related to an instance
+	 */
+	public void increment(String name, RServerInstance instance, long amount);
+	
+	/** Registers a value read when the gauge is polled, replacing the previous one with the same name and instance
+	 * @param instance tag, null for metrics not related to an instance
+	 */
+	public void gauge(String name, RServerInstance instance, DoubleSupplier value);
+	
+	/** Metrics discarding everything, the default of {@link RSessionFactory} */
+	public static RServerMetrics noop() {
+		return NoopMetrics.INSTANCE;
+	}
+	
+	enum NoopMetrics implements RServerMetrics {
+		INSTANCE;
+
+		@Override
+		public void recordTime(String name, RServerInstance instance, long nanos) {
+		}
+
+		@Override
+		public void increment(String name, RServerInstance instance, long amount) {
+		}
+
+		@Override
+		public void gauge(String name, RServerInstance instance, DoubleSupplier value) {
+		}
+	}
+	
+}
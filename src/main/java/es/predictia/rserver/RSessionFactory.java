@@ -1,90 +1,836 @@
 package es.predictia.rserver;
 
+import java.io.IOException;
+import java.time.Duration;
 import java.time.LocalDateTime;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.HashSet;
+import java.util.Comparator;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentSkipListSet;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.stream.Collectors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.rosuda.REngine.Rserve.RserveException;
 
 import lombok.extern.slf4j.Slf4j;
 
 @Slf4j
 public class RSessionFactory  {
 
-	private transient Collection<SessionTasks> sessionTasks = Collections.synchronizedSet(new HashSet<SessionTasks>());
+	public RSessionFactory() {
+		setAvailableInstances(Arrays.asList(RServerInstance.builder().build()));
+	}
+
+	private transient final Set<SessionTasks> sessionTasks = ConcurrentHashMap.newKeySet();
+	
+	/** Queued requests, most urgent first and then oldest first */
+	private transient final Set<SessionTasks> waitingTasks = new ConcurrentSkipListSet<SessionTasks>(Comparator
+		.comparing(SessionTasks::getPriority, Comparator.reverseOrder())
+		.thenComparingLong(SessionTasks::getQueueSequence));
+	
+	private final AtomicLong queueSequence = new AtomicLong(0);
+	
+	/** Number of queued requests by requested resources, so dispatch knows the smallest one without walking the queue */
+	private transient final ConcurrentSkipListMap<Integer, Integer> waitingResources = new ConcurrentSkipListMap<>();
 	
-	synchronized Optional<RServerInstance> getInstanceForRequest(SessionTasks tasks){
-		expireSessions();
-		deleteOldSessions();
-		boolean newRequest = !sessionTasks.contains(tasks);
+	/** Queues the request, the returned future completes as soon as an instance has enough free resources for it
+	 * or fails with a {@link TimeoutException} when {@link RSessionRequest#getMaxQueueTime()} elapses. It fails
+	 * right away with an {@link IllegalArgumentException} if no instance declares its {@link RSessionRequest#getWarmupProfile()}
+	 */
+	CompletableFuture<RServerInstance> requestInstance(SessionTasks tasks){
 		RSessionRequest sessionRequest = tasks.getSessionRequest();
-		if(newRequest){
-			log.info("Received session request for "+ sessionRequest.getRequestedResources()  + " resources: " + sessionRequest);
-			sessionTasks.add(tasks);
+		log.info("Received session request for "+ sessionRequest.getRequestedResources()  + " resources: " + sessionRequest);
+		sessionRequest.setRequestTime(LocalDateTime.now());
+		CompletableFuture<RServerInstance> instanceFuture = new CompletableFuture<>();
+		tasks.setInstanceFuture(instanceFuture);
+		if(sessionRequest.getWarmupProfile() != null && !declaresWarmupProfile(sessionRequest.getWarmupProfile())){
+			log.warn("No instance declares warm-up profile {} of session request {}", sessionRequest.getWarmupProfile(), sessionRequest);
+			instanceFuture.completeExceptionally(new IllegalArgumentException("No instance declares warm-up profile " + sessionRequest.getWarmupProfile()));
+			return instanceFuture;
+		}
+		if(tasks.getQueueSequence() == 0){
+			tasks.setQueueSequence(queueSequence.incrementAndGet());
+		}
+		tasks.setQueueTimeout(scheduler.schedule(() -> expireQueuedRequest(tasks), 
+			sessionRequest.getMaxQueueTime(), sessionRequest.getMaxQueueTimeUnit()));
+		enqueue(tasks);
+		dispatch();
+		return instanceFuture;
+	}
+	
+	/** Gives back the resources held by the session, handing them to the queued requests. A request still waiting,
+	 * whose worker was cancelled, is just taken out of the queue
+	 */
+	void releaseInstance(SessionTasks tasks){
+		Optional.ofNullable(tasks.getExpiry()).ifPresent(expiry -> expiry.cancel(false));
+		if(sessionTasks.remove(tasks)){
+			log.debug("Released resources of session {}", tasks.getSessionRequest());
+			tasks.getReservedResources().release(tasks.getRequestedResources());
+			BackfillReservation reservation = this.reservation;
+			if(reservation != null && reservation.getResources() == tasks.getReservedResources()){
+				invalidateReservation();
+			}
+			checkDrained(tasks.getReservedResources());
+			dispatch();
+		}else if(dequeue(tasks)){
+			log.debug("Session request {} cancelled in queue", tasks.getSessionRequest());
+			Optional.ofNullable(tasks.getQueueTimeout()).ifPresent(timeout -> timeout.cancel(false));
+			tasks.getInstanceFuture().cancel(false);
+			dispatch();
+		}
+	}
+	
+	private void expireQueuedRequest(SessionTasks tasks) {
+		if(!dequeue(tasks)){
+			return;
+		}
+		log.warn("Session request {} in queue for too long", tasks.getSessionRequest());
+		metrics.increment(RServerMetrics.QUEUE_TIMEOUTS, null, 1l);
+		tasks.getInstanceFuture().completeExceptionally(new TimeoutException("RSessionRequest in queue for too long"));
+	}
+	
+	private void enqueue(SessionTasks tasks){
+		waitingResources.merge(tasks.getRequestedResources(), 1, Integer::sum);
+		waitingTasks.add(tasks);
+	}
+	
+	/** @return false if the request was not queued, because it was already taken out
+	 */
+	private boolean dequeue(SessionTasks tasks){
+		if(!waitingTasks.remove(tasks)){
+			return false;
 		}
+		waitingResources.computeIfPresent(tasks.getRequestedResources(), (resources, count) -> count > 1 ? count - 1 : null);
+		return true;
+	}
+	
+	private final AtomicInteger dispatchRequests = new AtomicInteger(0);
+	
+	/** Held for the first blocked request between dispatch passes, only written by the dispatching thread */
+	private volatile BackfillReservation reservation;
+	
+	/** Set when the sessions or capacity of the instances change, so the reservation is computed again */
+	private volatile boolean reservationStale = false;
+	
+	private void invalidateReservation(){
+		reservationStale = true;
+	}
+	
+	/** Assigns instances to queued requests by priority and age. The first request that does not fit gets a
+	 * {@link BackfillReservation}, kept until it starts or the instances change, and the ones behind it only start if
+	 * they do not delay it. The pass stops as soon as no instance has room for the smallest queued request. Only one
+	 * thread dispatches at a time, requests arriving meanwhile make it loop again instead of blocking
+	 */
+	private void dispatch(){
+		if(dispatchRequests.getAndIncrement() != 0){
+			return;
+		}
+		int missed = 1;
+		do {
+			LocalDateTime now = LocalDateTime.now();
+			boolean blocked = false;
+			int maxFreeResources = getMaxFreeResources();
+			for(SessionTasks tasks : waitingTasks){
+				int requestedResources = tasks.getRequestedResources();
+				Integer smallestRequest = waitingResources.isEmpty() ? null : waitingResources.firstKey();
+				if(smallestRequest == null || maxFreeResources < smallestRequest){
+					if(!blocked){
+						updateReservation(tasks, now);
+						blocked = true;
+					}
+					break;
+				}
+				Optional<InstanceResources> reserved = Optional.empty();
+				if(requestedResources <= maxFreeResources){
+					try{
+						reserved = reserveInstanceForRequest(tasks, blocked ? reservation : null, now);
+					}catch(RuntimeException e){
+						log.warn("Error while searching instance for request " + tasks.getSessionRequest(), e);
+						continue;
+					}
+				}
+				if(!reserved.isPresent()){
+					if(!blocked){
+						updateReservation(tasks, now);
+						blocked = true;
+					}
+					continue;
+				}
+				if(!dequeue(tasks)){
+					reserved.get().release(requestedResources);
+					continue;
+				}
+				BackfillReservation reservation = this.reservation;
+				if(reservation != null){
+					if(reservation.getTasks() == tasks){
+						this.reservation = null;
+					}else if(blocked){
+						reservation.backfill(reserved.get(), tasks, now);
+					}else if(reservation.getResources() == reserved.get()){
+						invalidateReservation();
+					}
+				}
+				accept(tasks, reserved.get());
+				maxFreeResources = getMaxFreeResources();
+			}
+			if(!blocked){
+				reservation = null;
+			}
+			missed = dispatchRequests.addAndGet(-missed);
+		} while(missed != 0);
+	}
+	
+	/** Keeps the reservation if it is still for the first blocked request and nothing changed on the instances since
+	 * it was made, otherwise reserves again for the request
+	 */
+	private void updateReservation(SessionTasks tasks, LocalDateTime now){
+		BackfillReservation reservation = this.reservation;
+		if(reservation != null && reservation.getTasks() == tasks && !reservationStale
+			&& !reservation.getResources().isDraining() && reservation.getResources().getHealth().isAvailable()){
+			return;
+		}
+		reservationStale = false;
+		reservation = BackfillReservation.forRequest(tasks, eligibleInstances(tasks), sessionTasks, now).orElse(null);
+		if(reservation != null){
+			log.debug("Reserving {} for request {} from {}", reservation.getResources().getInstance(), tasks.getSessionRequest(), reservation.getShadowTime());
+		}
+		this.reservation = reservation;
+	}
+	
+	/** Most free resources of any instance accepting sessions, whatever the request */
+	private int getMaxFreeResources(){
+		int maxFreeResources = 0;
+		for(InstanceResources resources : instanceResources.values()){
+			if(!resources.isDraining() && resources.getHealth().isAvailable()){
+				maxFreeResources = Math.max(maxFreeResources, resources.getFreeResources());
+			}
+		}
+		return maxFreeResources;
+	}
+	
+	private Optional<InstanceResources> reserveInstanceForRequest(SessionTasks tasks, BackfillReservation reservation, LocalDateTime now){
+		RSessionRequest sessionRequest = tasks.getSessionRequest();
 		log.debug("Searching for available instances");
-		for(RServerInstance instance : availableInstances){
-			long usedResources = sessionTasks.stream()
-				.map(input -> input.getSessionRequest())
-				.filter(RSessionRequest.predicateForInstance(instance))
-				.mapToInt(RSessionRequest::getRequestedResources)
-				.sum();
-			if(instance.getResources() >= (usedResources + sessionRequest.getRequestedResources())){
-				log.info("Found suitable instance for request " + sessionRequest + ": " + instance.getUrl());
-				sessionRequest.setInstance(instance);
-				sessionRequest.setAcceptedTime(LocalDateTime.now());
-				return Optional.of(instance);
-			}			
+		List<InstanceLoad> candidates = new ArrayList<>();
+		for(InstanceResources resources : eligibleInstances(tasks)){
+			if(resources.getFreeResources() < tasks.getRequestedResources()){
+				continue;
+			}else if(reservation != null && !reservation.allows(resources, tasks, now)){
+				continue;
+			}
+			candidates.add(resources);
+		}
+		while(!candidates.isEmpty()){
+			Optional<InstanceLoad> selected = instanceSelectionStrategy.select(Collections.unmodifiableList(candidates), sessionRequest);
+			if(!selected.isPresent()){
+				return Optional.empty();
+			}
+			if(!candidates.contains(selected.get())){
+				log.warn("Instance {} selected for request {} is not a candidate", selected.get().getInstance(), sessionRequest);
+				selected = Optional.of(candidates.get(0));
+			}
+			InstanceResources resources = (InstanceResources) selected.get();
+			if(resources.tryReserve(tasks.getRequestedResources())){
+				log.info("Found suitable instance for request " + sessionRequest + ": " + resources.getInstance().getUrl());
+				return Optional.of(resources);
+			}
+			checkDrained(resources);
+			candidates.remove(resources);
 		}
 		return Optional.empty();
 	}
-
-	private void expireSessions(){
-		for(SessionTasks iSessionTasks : sessionTasks){
-			iSessionTasks.cancelExpiredWorker();
+	
+	private InstanceResources createInstanceResources(RServerInstance instance){
+		InstanceResources resources = new InstanceResources(instance);
+		registerGauges(resources);
+		return resources;
+	}
+	
+	private void registerGauges(InstanceResources resources){
+		metrics.gauge(RServerMetrics.RESOURCES_USED, resources.getInstance(), resources::getUsedResources);
+		metrics.gauge(RServerMetrics.LOAD, resources.getInstance(), resources::getLoad);
+		metrics.gauge(RServerMetrics.AVAILABLE, resources.getInstance(), () -> resources.getHealth().isAvailable() ? 1d : 0d);
+	}
+	
+	private volatile RServerMetrics metrics = RServerMetrics.noop();
+	
+	/** Where queue, connection, eval and transfer metrics are published, {@link RServerMetrics#noop()} by default
+	 */
+	public void setMetrics(RServerMetrics metrics) {
+		this.metrics = metrics;
+		metrics.gauge(RServerMetrics.QUEUE_SIZE, null, waitingTasks::size);
+		instanceResources.values().forEach(this::registerGauges);
+	}
+	
+	public RServerMetrics getMetrics() {
+		return metrics;
+	}
+	
+	private volatile InstanceSelectionStrategy instanceSelectionStrategy = InstanceSelectionStrategy.firstFit();
+	
+	/** Strategy choosing among the instances with room for a request, {@link InstanceSelectionStrategy#firstFit()} by default
+	 */
+	public void setInstanceSelectionStrategy(InstanceSelectionStrategy instanceSelectionStrategy) {
+		this.instanceSelectionStrategy = instanceSelectionStrategy;
+	}
+	
+	/** Instances that could run the request: healthy, not failed to connect for it before and declaring its 
+	 * {@link RSessionRequest#getWarmupProfile()} if it names one
+	 */
+	private List<InstanceResources> eligibleInstances(SessionTasks tasks){
+		return eligibleInstances(tasks.getSessionRequest(), tasks.getFailedInstances());
+	}
+	
+	private List<InstanceResources> eligibleInstances(RSessionRequest sessionRequest, Set<RServerInstance> failedInstances){
+		List<InstanceResources> eligible = new ArrayList<>();
+		for(RServerInstance instance : availableInstances){
+			if(sessionRequest.getWarmupProfile() != null && instance.getWarmupProfile(sessionRequest.getWarmupProfile()).isEmpty()){
+				continue;
+			}else if(failedInstances.contains(instance)){
+				continue;
+			}
+			InstanceResources resources = instanceResources.get(instance);
+			if(resources != null && !resources.isDraining() && resources.getHealth().isAvailable()){
+				eligible.add(resources);
+			}
+		}
+		return eligible;
+	}
+	
+	/** Whether any instance not being removed declares the profile
+	 */
+	private boolean declaresWarmupProfile(String profile){
+		for(RServerInstance instance : availableInstances){
+			InstanceResources resources = instanceResources.get(instance);
+			if(resources != null && !resources.isRemoving() && instance.getWarmupProfile(profile).isPresent()){
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	/** Sessions like the request that the instances could start right now with their free resources
+	 */
+	int getFreeSessions(RSessionRequest sessionRequest){
+		int sessions = 0;
+		for(InstanceResources resources : eligibleInstances(sessionRequest, Collections.emptySet())){
+			sessions += Math.max(0, resources.getFreeResources()) / Math.max(1, sessionRequest.getRequestedResources());
 		}
+		return sessions;
 	}
 	
-	private void deleteOldSessions(){
-		Collection<SessionTasks> oldSessions = sessionTasks.stream()
-			.filter(input -> input.isDone())
-			.collect(Collectors.toList());
-		if(oldSessions.isEmpty()){
+	private volatile InstanceHealthPolicy healthPolicy = InstanceHealthPolicy.createDefaultPolicy();
+	
+	/** When instances failing to connect are skipped and probed again, {@link InstanceHealthPolicy#createDefaultPolicy()} by default
+	 */
+	public void setHealthPolicy(InstanceHealthPolicy healthPolicy) {
+		this.healthPolicy = healthPolicy;
+	}
+	
+	/** Connection health of the instance, empty if it is not available
+	 */
+	public Optional<InstanceHealth> getInstanceHealth(RServerInstance instance){
+		return Optional.ofNullable(instanceResources.get(instance)).map(InstanceResources::getHealth);
+	}
+	
+	/** Releases the resources of a session that could not connect to the instance and queues it again if it can
+	 * still try other instances, see {@link InstanceHealthPolicy#getMaxConnectAttempts()}
+	 * @return true if the session was queued again
+	 */
+	boolean retryOnAnotherInstance(SessionTasks tasks, RServerInstance failedInstance){
+		tasks.getFailedInstances().add(failedInstance);
+		releaseInstance(tasks);
+		if(tasks.getFailedInstances().size() >= healthPolicy.getMaxConnectAttempts()){
+			return false;
+		}
+		boolean othersLeft = availableInstances.stream()
+			.filter(instance -> !tasks.getFailedInstances().contains(instance))
+			.anyMatch(instance -> tasks.getSessionRequest().getWarmupProfile() == null || instance.getWarmupProfile(tasks.getSessionRequest().getWarmupProfile()).isPresent());
+		if(othersLeft){
+			log.info("Retrying session request {} on another instance than {}", tasks.getSessionRequest(), failedInstance.getUrl());
+		}
+		return othersLeft;
+	}
+	
+	private void connectFailed(RServerInstance instance, Throwable e){
+		metrics.increment(RServerMetrics.CONNECT_FAILURES, instance, 1l);
+		InstanceResources resources = instanceResources.get(instance);
+		if(resources != null && resources.getHealth().recordFailure(e, healthPolicy)){
+			log.warn("Circuit of {} opened after {} consecutive failures", instance.getUrl(), resources.getHealth().getConsecutiveFailures());
+			scheduleProbe(resources);
+		}
+	}
+	
+	private void connectSucceeded(RServerInstance instance, long nanos){
+		InstanceResources resources = instanceResources.get(instance);
+		if(resources != null){
+			resources.getHealth().recordSuccess(nanos);
+		}
+	}
+	
+	private void scheduleProbe(InstanceResources resources){
+		InstanceHealthPolicy policy = healthPolicy;
+		scheduler.schedule(() -> getExecutorService().execute(() -> probe(resources)), 
+			resources.getHealth().getBackoff(), policy.getBackoffUnit());
+	}
+	
+	/** Connects to an instance with the circuit open, closing it and dispatching the queue if it succeeds
+	 */
+	private void probe(InstanceResources resources){
+		RServerInstance instance = resources.getInstance();
+		if(instanceResources.get(instance) != resources || !resources.getHealth().startProbe()){
 			return;
 		}
-		log.debug("Cleaning old sessions");
-		sessionTasks.removeAll(oldSessions);
+		long start = System.nanoTime();
+		try{
+			RServerInstance.connect(instance).close();
+		}catch(Exception e){
+			log.debug("Probe of {} failed: {}", instance.getUrl(), e.toString());
+			if(resources.getHealth().recordFailure(e, healthPolicy)){
+				scheduleProbe(resources);
+			}
+			return;
+		}
+		resources.getHealth().recordSuccess(System.nanoTime() - start);
+		log.info("Circuit of {} closed, probe connected", instance.getUrl());
+		invalidateReservation();
+		dispatch();
+	}
+	
+	private void accept(SessionTasks tasks, InstanceResources resources){
+		RSessionRequest sessionRequest = tasks.getSessionRequest();
+		sessionRequest.setInstance(resources.getInstance());
+		sessionRequest.setAcceptedTime(LocalDateTime.now());
+		metrics.recordTime(RServerMetrics.QUEUE_WAIT, resources.getInstance(), Duration.between(sessionRequest.getRequestTime(), sessionRequest.getAcceptedTime()).toNanos());
+		tasks.setReservedResources(resources);
+		sessionTasks.add(tasks);
+		tasks.setExpiry(scheduler.schedule(tasks::expire, sessionRequest.getRequestedTime(), sessionRequest.getRequestedTimeUnit()));
+		Optional.ofNullable(tasks.getQueueTimeout()).ifPresent(timeout -> timeout.cancel(false));
+		tasks.getInstanceFuture().complete(resources.getInstance());
 	}
 	
-	private List<RServerInstance> availableInstances = Arrays.asList(RServerInstance.builder().build());
+	private volatile List<RServerInstance> availableInstances = Collections.emptyList();
+	
+	private final Map<RServerInstance, InstanceResources> instanceResources = new ConcurrentHashMap<>();
+	
+	/** Guards changes of the instances, sessions are admitted meanwhile */
+	private final Object membershipLock = new Object();
 	
+	/** Sets the instances sessions are sent to, in order of preference. Instances not in the list are removed once
+	 * their running sessions finish, see {@link #removeInstance(RServerInstance)}
+	 */
 	public void setAvailableInstances(List<RServerInstance> availableInstances) {
-		this.availableInstances = availableInstances;
+		List<RServerInstance> added = new ArrayList<>();
+		synchronized(membershipLock){
+			List<RServerInstance> members = new ArrayList<>(availableInstances);
+			for(RServerInstance instance : availableInstances){
+				InstanceResources resources = instanceResources.get(instance);
+				if(resources == null){
+					instanceResources.put(instance, createInstanceResources(instance));
+					added.add(instance);
+				}else if(resources.isRemoving()){
+					resources.resume();
+				}
+			}
+			for(RServerInstance instance : this.availableInstances){
+				if(!availableInstances.contains(instance)){
+					members.add(instance);
+				}
+			}
+			this.availableInstances = Collections.unmodifiableList(members);
+			for(RServerInstance instance : this.availableInstances){
+				if(!availableInstances.contains(instance)){
+					drain(instance, true);
+				}
+			}
+			resizeExecutorService();
+		}
+		invalidateReservation();
+		added.stream()
+			.filter(instance -> !instance.getWarmupProfiles().isEmpty())
+			.forEach(instance -> getConnectionPool(instance).replenish());
+		dispatch();
+	}
+	
+	public List<RServerInstance> getAvailableInstances() {
+		return availableInstances;
 	}
+	
+	/** Adds the instance after the current ones, or makes it accept sessions again if it was draining
+	 */
+	public void addInstance(RServerInstance instance) {
+		synchronized(membershipLock){
+			if(availableInstances.contains(instance)){
+				resumeInstance(instance);
+				return;
+			}
+			List<RServerInstance> members = new ArrayList<>();
+			for(RServerInstance member : availableInstances){
+				if(!instanceResources.get(member).isRemoving()){
+					members.add(member);
+				}
+			}
+			members.add(instance);
+			setAvailableInstances(members);
+		}
+	}
+	
+	/** Stops sending sessions to the instance and removes it once the running ones finish
+	 * @return future completed when the instance is removed
+	 */
+	public CompletableFuture<Void> removeInstance(RServerInstance instance) {
+		synchronized(membershipLock){
+			return drain(instance, true);
+		}
+	}
+	
+	/** Stops sending sessions to the instance, which stays available to be resumed
+	 * @return future completed when the running sessions of the instance finish
+	 */
+	public CompletableFuture<Void> drainInstance(RServerInstance instance) {
+		synchronized(membershipLock){
+			return drain(instance, false);
+		}
+	}
+	
+	/** Sends sessions to a draining instance again
+	 */
+	public void resumeInstance(RServerInstance instance) {
+		Optional.ofNullable(instanceResources.get(instance)).ifPresent(InstanceResources::resume);
+		invalidateReservation();
+		dispatch();
+	}
+	
+	/** Changes the resources offered by the instance. When they are reduced, running sessions keep theirs and new
+	 * ones wait until the used resources go under the new capacity. Its connection pool follows the new capacity
+	 */
+	public void setInstanceCapacity(RServerInstance instance, int resources) {
+		InstanceResources instanceResources = this.instanceResources.get(instance);
+		if(instanceResources == null){
+			throw new IllegalArgumentException("Unknown instance " + instance.getUrl());
+		}
+		log.info("Capacity of {} changed from {} to {}", instance.getUrl(), instanceResources.getCapacity(), resources);
+		instanceResources.setCapacity(resources);
+		synchronized(membershipLock){
+			resizeExecutorService();
+		}
+		Optional.ofNullable(connectionPools.get(instance)).ifPresent(RConnectionPool::evict);
+		invalidateReservation();
+		dispatch();
+	}
+	
+	private CompletableFuture<Void> drain(RServerInstance instance, boolean remove){
+		InstanceResources resources = instanceResources.get(instance);
+		if(resources == null){
+			return CompletableFuture.completedFuture(null);
+		}
+		log.info("{} {}", remove ? "Removing" : "Draining", instance.getUrl());
+		CompletableFuture<Void> drained = resources.drain(remove);
+		invalidateReservation();
+		checkDrained(resources);
+		return drained;
+	}
+	
+	/** Completes the drain of the instance if it has no sessions left, removing it if requested
+	 */
+	private void checkDrained(InstanceResources resources){
+		if(!resources.isDraining()){
+			return;
+		}
+		Optional<CompletableFuture<Void>> drained = resources.claimDrainIfIdle();
+		if(drained.isEmpty()){
+			return;
+		}
+		log.info("{} drained", resources.getInstance().getUrl());
+		if(resources.isRemoving()){
+			remove(resources);
+		}
+		drained.get().complete(null);
+	}
+	
+	private void remove(InstanceResources resources){
+		RServerInstance instance = resources.getInstance();
+		synchronized(membershipLock){
+			if(!instanceResources.remove(instance, resources)){
+				return;
+			}
+			List<RServerInstance> members = new ArrayList<>(availableInstances);
+			members.remove(instance);
+			availableInstances = Collections.unmodifiableList(members);
+			Optional.ofNullable(connectionPools.remove(instance)).ifPresent(RConnectionPool::close);
+			auxFileCaches.remove(instance);
+			resizeExecutorService();
+		}
+		log.info("Removed {}", instance.getUrl());
+	}
+	
+	private final Map<RServerInstance, RConnectionPool> connectionPools = new ConcurrentHashMap<>();
+	
+	/** Opens a session with the instance. The connection comes from the pool if the request names one of the {@link RServerInstance#getWarmupProfiles()}
+	 * or {@link RServerInstance#getPooledConnections()} is enabled
+	 */
+	Rsession createSession(RServerInstance instance, RSessionRequest sessionRequest) throws RserveException, IOException {
+		Optional<RWarmupProfile> profile = Optional.ofNullable(sessionRequest.getWarmupProfile())
+			.flatMap(instance::getWarmupProfile);
+		long start = System.nanoTime();
+		Rsession session;
+		try{
+			if(profile.isEmpty() && !Boolean.TRUE.equals(instance.getPooledConnections())){
+				session = new Rsession(instance);
+			}else{
+				session = new Rsession(getConnectionPool(instance), profile.orElse(null));
+			}
+		}catch(RserveException | IOException | RuntimeException e){
+			connectFailed(instance, e);
+			throw e;
+		}
+		long elapsed = System.nanoTime() - start;
+		connectSucceeded(instance, elapsed);
+		metrics.recordTime(RServerMetrics.CONNECT, instance, elapsed);
+		session.setMetrics(metrics);
+		getAuxFileCache(instance).ifPresent(session::setAuxFileCache);
+		ExecutorService service = getExecutorService();
+		if(service == virtualThreadService){
+			session.setAsyncExecutor(service);
+		}
+		return session;
+	}
+	
+	private final Map<RServerInstance, AuxFileCache> auxFileCaches = new ConcurrentHashMap<>();
+	
+	private final FileDigests fileDigests = new FileDigests();
+	
+	/** Cache of aux files of the instance, if it has {@link RServerInstance#getAuxFileCacheDirectory()}
+	 */
+	public Optional<AuxFileCache> getAuxFileCache(RServerInstance instance){
+		if(instance.getAuxFileCacheDirectory() == null){
+			return Optional.empty();
+		}
+		return Optional.of(auxFileCaches.computeIfAbsent(instance, key -> new AuxFileCache(key, fileDigests)));
+	}
+	
+	/** Runs the function over chunks of the inputs in parallel sessions, sized to the free resources of the instances
+	 * @return the map, already started
+	 */
+	public <I, O> RParallelMap<I, O> parallelMap(Collection<I> inputs, RParallelMap.ChunkFunction<I, O> function, RParallelMapOptions options) {
+		return startMap(new RParallelMap<I, O>(inputs, chunk -> new SimpleRWorker(session -> chunk.setResult(function.apply(session, chunk.getInputs()))), this, options));
+	}
+	
+	public <I, O> RParallelMap<I, O> parallelMap(Collection<I> inputs, RParallelMap.ChunkFunction<I, O> function) {
+		return parallelMap(inputs, function, RParallelMapOptions.createDefaultOptions());
+	}
+	
+	/** Runs the script of each chunk of the inputs in parallel sessions, the result of each chunk is its script, whose
+	 * {@link RScript#getResultFiles()} are retrieved
+	 * @return the map, already started
+	 */
+	public <I> RParallelMap<I, RScript> parallelMapScripts(Collection<I> inputs, RParallelMap.ChunkScript<I> scripts, RParallelMapOptions options) {
+		return startMap(new RParallelMap<I, RScript>(inputs, chunk -> {
+			RScript script = scripts.toScript(chunk.getInputs());
+			chunk.setResult(script);
+			return new ScriptRWorker(script);
+		}, this, options));
+	}
+	
+	private <I, O> RParallelMap<I, O> startMap(RParallelMap<I, O> map) {
+		map.launchChunks(false);
+		return map;
+	}
+	
+	private volatile RScriptResultCache resultCache;
+	
+	/** Where result files of {@link RScript} workers are kept to be reused by later runs of the same script, none by default
+	 */
+	public void setResultCache(RScriptResultCache resultCache) {
+		this.resultCache = resultCache;
+	}
+	
+	public Optional<RScriptResultCache> getResultCache() {
+		return Optional.ofNullable(resultCache);
+	}
+	
+	private RConnectionPool getConnectionPool(RServerInstance instance){
+		return connectionPools.computeIfAbsent(instance, this::createConnectionPool);
+	}
+	
+	private RConnectionPool createConnectionPool(RServerInstance instance){
+		InstanceResources resources = instanceResources.get(instance);
+		if(resources == null){
+			throw new IllegalArgumentException("Unknown instance " + instance.getUrl());
+		}
+		RConnectionPool pool = new RConnectionPool(resources, task -> getExecutorService().execute(task));
+		long evictionInterval = Math.max(instance.getMaxIdleTimeUnit().toMillis(instance.getMaxIdleTime()) / 2, MIN_EVICTION_INTERVAL);
+		pool.setEviction(scheduler.scheduleWithFixedDelay(pool::evict, evictionInterval, evictionInterval, TimeUnit.MILLISECONDS));
+		return pool;
+	}
+	
+	private static final long MIN_EVICTION_INTERVAL = 1000l;
 
-	private ExecutorService executorService;
+	private volatile ExecutorService executorService;
+	
+	private boolean defaultExecutorService = false;
+	
+	/** Default executor when it runs on virtual threads, also used for the async operations of the sessions */
+	private volatile ExecutorService virtualThreadService;
 	
 	ExecutorService getExecutorService() {
+		ExecutorService service = executorService;
+		if(service == null){
+			service = getOrCreateDefaultService();
+		}
+		return service;
+	}
+	
+	private synchronized ExecutorService getOrCreateDefaultService() {
 		if(executorService == null){
-			setExecutorService(createDefaultService());
+			executorService = createDefaultService();
+			defaultExecutorService = true;
 		}
 		return executorService;
 	}
 
-	private synchronized ExecutorService createDefaultService() {
-		long totalNumberOfResources = availableInstances.stream()
-			.mapToLong(RServerInstance::getResources)
-			.sum();
-		return Executors.newFixedThreadPool(Long.valueOf(totalNumberOfResources).intValue() + 4);
+	private ExecutorService createDefaultService() {
+		if(executionMode == ExecutionMode.VIRTUAL_THREADS){
+			Optional<ExecutorService> virtualThreadService = createVirtualThreadService();
+			if(virtualThreadService.isPresent()){
+				log.info("Running sessions on virtual threads");
+				this.virtualThreadService = virtualThreadService.get();
+				return this.virtualThreadService;
+			}
+			log.warn("Virtual threads are not supported by this JVM, running sessions on platform threads");
+		}
+		int size = defaultThreadPoolSize();
+		defaultThreadPool = new ThreadPoolExecutor(size, size, 0l, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>());
+		return defaultThreadPool;
+	}
+	
+	/** Default executor when it runs on platform threads, resized as the capacity of the instances changes */
+	private ThreadPoolExecutor defaultThreadPool;
+	
+	private int defaultThreadPoolSize() {
+		return instanceResources.values().stream()
+			.mapToInt(InstanceResources::getCapacity)
+			.sum() + 4;
+	}
+	
+	/** One thread per resource of the instances, plus some spare ones, only for the default platform thread pool */
+	private void resizeExecutorService() {
+		ThreadPoolExecutor pool;
+		synchronized(this){
+			pool = defaultThreadPool;
+			if(pool == null || pool != executorService){
+				return;
+			}
+		}
+		int size = defaultThreadPoolSize();
+		if(size > pool.getMaximumPoolSize()){
+			pool.setMaximumPoolSize(size);
+			pool.setCorePoolSize(size);
+		}else if(size < pool.getCorePoolSize()){
+			pool.setCorePoolSize(size);
+			pool.setMaximumPoolSize(size);
+		}
+	}
+	
+	/** Executor with a new virtual thread per task, looked up by reflection as it is only available from Java 21
+	 */
+	private static Optional<ExecutorService> createVirtualThreadService() {
+		try {
+			return Optional.of((ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null));
+		} catch (ReflectiveOperationException | UnsupportedOperationException e) {
+			log.debug("Could not create virtual thread executor: {}", e.toString());
+			return Optional.empty();
+		}
 	}
 	
 	public synchronized void setExecutorService(ExecutorService executorService) {
 		this.executorService = executorService;
+		this.defaultExecutorService = false;
+	}
+	
+	/** How sessions and workers are run when no {@link ExecutorService} is set
+	 */
+	public enum ExecutionMode {
+		/** A fixed pool with one platform thread per resource, plus some spare ones */
+		PLATFORM_THREADS,
+		/** One virtual thread per task when the JVM supports them, so only R resources limit concurrency */
+		VIRTUAL_THREADS
+	}
+	
+	private volatile ExecutionMode executionMode = ExecutionMode.PLATFORM_THREADS;
+	
+	/** Sets the execution mode, replacing the default executor if it was already created. The replaced one keeps
+	 * running the workers launched on it, and is shut down once none is left
+	 */
+	public synchronized void setExecutionMode(ExecutionMode executionMode) {
+		this.executionMode = executionMode;
+		if(defaultExecutorService && this.executorService != null){
+			retiredExecutors.add(this.executorService);
+			this.executorService = null;
+			this.defaultThreadPool = null;
+			this.virtualThreadService = null;
+		}
+		shutdownRetiredExecutors();
+	}
+	
+	/** Default executors replaced by {@link #setExecutionMode(ExecutionMode)} while workers could still use them */
+	private final List<ExecutorService> retiredExecutors = new ArrayList<>();
+	
+	/** Workers launched and not finished yet, whose async stages may run on a retired executor */
+	private final AtomicInteger runningWorkers = new AtomicInteger(0);
+	
+	void workerLaunched() {
+		runningWorkers.incrementAndGet();
+	}
+	
+	void workerFinished() {
+		if(runningWorkers.decrementAndGet() == 0){
+			shutdownRetiredExecutors();
+		}
+	}
+	
+	private synchronized void shutdownRetiredExecutors() {
+		if(retiredExecutors.isEmpty() || runningWorkers.get() != 0){
+			return;
+		}
+		log.debug("Shutting down {} replaced executors", retiredExecutors.size());
+		retiredExecutors.forEach(ExecutorService::shutdown);
+		retiredExecutors.clear();
+	}
+	
+	/** Cancelled timers are removed at once, as the queue and expiry ones hold their sessions for up to a day */
+	private final ScheduledThreadPoolExecutor scheduler = createScheduler();
+	
+	private static ScheduledThreadPoolExecutor createScheduler() {
+		ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(1, r -> {
+			Thread thread = new Thread(r, "rserver-scheduler");
+			thread.setDaemon(true);
+			return thread;
+		});
+		scheduler.setRemoveOnCancelPolicy(true);
+		return scheduler;
+	}
+	
+	/** Timers on the scheduler still to fire */
+	int getPendingTimers() {
+		return scheduler.getQueue().size();
 	}
 
 }
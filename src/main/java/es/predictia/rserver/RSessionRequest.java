@@ -2,7 +2,6 @@ package es.predictia.rserver;
 
 import java.time.LocalDateTime;
 import java.util.concurrent.TimeUnit;
-import java.util.function.Predicate;
 
 import lombok.Builder;
 import lombok.Data;
@@ -20,12 +19,21 @@ public class RSessionRequest {
 	@Builder.Default
 	private TimeUnit requestedTimeUnit = TimeUnit.HOURS;
 	
+	/** Requests with higher priority are admitted first, the same priority ones in arrival order
+	 */
+	@Builder.Default
+	private Integer priority = 0;
+	
 	@Builder.Default
 	private Long maxQueueTime = 24l;
 	
 	@Builder.Default
 	private TimeUnit maxQueueTimeUnit = TimeUnit.HOURS;
 	
+	/** Name of the {@link RWarmupProfile} the session needs, only instances declaring it are used
+	 */
+	private String warmupProfile;
+	
 	private transient volatile RServerInstance instance;
 	
 	private transient LocalDateTime acceptedTime, requestTime;
@@ -51,9 +59,5 @@ public class RSessionRequest {
 	public String toString() {
 		return "#" + this.hashCode();
 	}
-	
-	static Predicate<RSessionRequest> predicateForInstance(RServerInstance instance){
-		return input -> instance.equals(input.getInstance());
-	}
 
 }
@@ -0,0 +1,85 @@
+package es.predictia.rserver;
+
+import java.nio.DoubleBuffer;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import lombok.Getter;
+
+/** Named columns of the same length, assigned as a data.frame by {@link Rsession#assign(String, RTable)}. Columns
+ * are kept as given, not copied
+ */
+@Getter
+public class RTable {
+
+	/** Column values by name, in order: <code>double[]</code>, <code>int[]</code>, <code>String[]</code> or {@link DoubleBuffer} */
+	private final Map<String, Object> columns;
+	
+	private final int rows;
+	
+	private RTable(Map<String, Object> columns, int rows) {
+		this.columns = Collections.unmodifiableMap(columns);
+		this.rows = rows;
+	}
+	
+	public static RTableBuilder builder() {
+		return new RTableBuilder();
+	}
+	
+	static int length(Object column) {
+		if(column instanceof double[]) {
+			return ((double[]) column).length;
+		}else if(column instanceof int[]) {
+			return ((int[]) column).length;
+		}else if(column instanceof String[]) {
+			return ((String[]) column).length;
+		}else if(column instanceof DoubleBuffer) {
+			return ((DoubleBuffer) column).remaining();
+		}
+		throw new IllegalArgumentException("Unsupported column type: " + column.getClass());
+	}
+	
+	public static class RTableBuilder {
+		
+		private final Map<String, Object> columns = new LinkedHashMap<>();
+		
+		private Integer rows;
+		
+		public RTableBuilder column(String name, double[] values) {
+			return addColumn(name, values);
+		}
+		
+		public RTableBuilder column(String name, int[] values) {
+			return addColumn(name, values);
+		}
+		
+		public RTableBuilder column(String name, String[] values) {
+			return addColumn(name, values);
+		}
+		
+		/** Remaining values of the buffer, which can be off-heap
+		 */
+		public RTableBuilder column(String name, DoubleBuffer values) {
+			return addColumn(name, values);
+		}
+		
+		private RTableBuilder addColumn(String name, Object values) {
+			int length = length(values);
+			if(rows != null && rows != length) {
+				throw new IllegalArgumentException("Column " + name + " has " + length + " values, expected " + rows);
+			}
+			if(columns.putIfAbsent(name, values) != null) {
+				throw new IllegalArgumentException("Duplicated column " + name);
+			}
+			rows = length;
+			return this;
+		}
+		
+		public RTable build() {
+			return new RTable(new LinkedHashMap<>(columns), rows != null ? rows : 0);
+		}
+		
+	}
+	
+}
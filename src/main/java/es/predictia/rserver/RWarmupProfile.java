@@ -0,0 +1,59 @@
+package es.predictia.rserver;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
+
+import org.rosuda.REngine.Rserve.RConnection;
+import org.rosuda.REngine.Rserve.RserveException;
+
+import lombok.Builder;
+import lombok.Data;
+import lombok.Singular;
+
+/** Packages and init script run on connections that are kept ready before any session asks for them
+ */
+@Data
+@Builder
+public class RWarmupProfile {
+
+	private final String name;
+	
+	@Singular
+	private final List<String> packages;
+	
+	private final RScript initScript;
+	
+	/** Number of warmed idle connections kept for each instance declaring the profile
+	 */
+	@Builder.Default
+	private final Integer warmSessions = 1;
+	
+	/** Loads the packages, sends the aux files of the init script and evaluates its lines in the global environment.
+	 * The connection must not be in use by any session
+	 */
+	void warmUp(RConnection connection) throws RserveException, IOException {
+		for(String pack : packages) {
+			connection.voidEval("library(" + pack + ")");
+		}
+		if(initScript == null) {
+			return;
+		}
+		for(File auxFile : initScript.getAuxFiles()) {
+			try(
+				OutputStream os = connection.createFile(auxFile.getName());
+				InputStream is = new BufferedInputStream(new FileInputStream(auxFile));
+			) {
+				is.transferTo(os);
+			}
+		}
+		if(!initScript.getLines().isEmpty()) {
+			connection.voidEval(String.join("\n", initScript.getLines()));
+		}
+	}
+	
+}
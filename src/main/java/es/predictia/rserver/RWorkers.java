@@ -4,7 +4,6 @@ import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
-import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 /** Runs {@link RWorker} objects using a {@link RSessionFactory}
@@ -35,31 +34,23 @@ class RWorkers {
 	 */
 	static void wait(long time, TimeUnit unit, final SimpleRWorker... workers) throws TimeoutException, InterruptedException, ExecutionException {
 		if(workers == null) return;
-		if(allFinished(workers)) return;
-		var waiters = Stream.of(workers)
-			.map(worker -> CompletableFuture.runAsync(() -> {
-				while(!worker.isFinished()) {
-					try{
-						Thread.sleep(5000l);
-					}catch(InterruptedException ex){
-						return;
-					}
-				}
-			}))
-			.collect(Collectors.toList());
-		CompletableFuture
-			.allOf(waiters.toArray(s -> new CompletableFuture[s]))
-			.get(time, unit);
+		allOf(workers).get(time, unit);
 	}
 	
+	/** Future completed when all the workers are finished, with or without errors
+	 */
+	static CompletableFuture<Void> allOf(final SimpleRWorker... workers) {
+		return CompletableFuture.allOf(Stream.of(workers)
+			.map(SimpleRWorker::getCompletion)
+			.toArray(CompletableFuture[]::new));
+	}
 	
-	private static boolean allFinished(RWorker... workers){
-		for(var worker : workers){
-			if(!worker.isFinished()){
-				return false;
-			}
-		}
-		return true;
+	/** Future completed with the first worker to finish, with or without errors
+	 */
+	static CompletableFuture<SimpleRWorker> anyOf(final SimpleRWorker... workers) {
+		var firstFinished = new CompletableFuture<SimpleRWorker>();
+		Stream.of(workers).forEach(worker -> worker.getCompletion().thenAccept(firstFinished::complete));
+		return firstFinished;
 	}
 	
 }
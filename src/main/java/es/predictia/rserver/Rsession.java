@@ -1,22 +1,49 @@
 package es.predictia.rserver;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
 import org.apache.commons.lang3.StringUtils;
 import org.rosuda.REngine.REXP;
+import org.rosuda.REngine.REXPDouble;
+import org.rosuda.REngine.REXPInteger;
+import org.rosuda.REngine.REXPString;
 import org.rosuda.REngine.REXPMismatchException;
 import org.rosuda.REngine.REngineException;
+import org.rosuda.REngine.RList;
 import org.rosuda.REngine.Rserve.RConnection;
 import org.rosuda.REngine.Rserve.RserveException;
 
+import es.predictia.rserver.RConnectionPool.PooledConnection;
+
 import lombok.extern.slf4j.Slf4j;
 
 @Slf4j
@@ -24,23 +51,138 @@ public class Rsession implements AutoCloseable {
 
 	private final RServerInstance instance;
 	private final RConnection connection;
+	private final RConnectionPool pool;
+	private final PooledConnection pooledConnection;
+	/** Set once {@link #close()} starts, so async operations still queued do not run */
+	private final AtomicBoolean closing = new AtomicBoolean(false);
+	/** Set once the connection is given back, closed or aborted */
+	private final AtomicBoolean closed = new AtomicBoolean(false);
+	/** Serializes the use of the connection, a lock instead of a monitor so blocking socket I/O does not pin virtual threads */
+	private final Lock connectionLock = new ReentrantLock();
 
 	public Rsession(RServerInstance instance) throws RserveException {
 		this.instance = instance;
 		this.connection = RServerInstance.connect(instance);
+		this.pool = null;
+		this.pooledConnection = null;
+		checkConnection();
+		log.info("Created connection with {}", instance);
+	}
+	
+	/** Session using a connection borrowed from the pool, given back when the session is closed
+	 * @param profile warm-up profile of the connection, null for a plain one
+	 */
+	Rsession(RConnectionPool pool, RWarmupProfile profile) throws RserveException, IOException {
+		this.instance = pool.getInstance();
+		this.pool = pool;
+		this.pooledConnection = pool.borrow(profile);
+		this.connection = pooledConnection.getConnection();
+		try {
+			checkConnection();
+		} catch (RuntimeException e) {
+			pool.discard(pooledConnection);
+			throw e;
+		}
+	}
+	
+	private void checkConnection() {
 		if (this.connection == null) {
 			throw new RuntimeException();
 		} else if (!this.connection.isConnected()) {
 			throw new RuntimeException();
 		} else if (this.connection.getServerVersion() < MinRserveVersion) {
 			throw new UnsupportedOperationException("Rserver needs to be at least" + MinRserveVersion);
-		}else{
-			log.info("Created connection with {}", instance);
 		}
 	}
 
 	private final static int MinRserveVersion = 103;
 	
+	private AuxFileCache auxFileCache;
+	
+	void setAuxFileCache(AuxFileCache auxFileCache) {
+		this.auxFileCache = auxFileCache;
+	}
+	
+	private RServerMetrics metrics = RServerMetrics.noop();
+	
+	void setMetrics(RServerMetrics metrics) {
+		this.metrics = metrics;
+	}
+	
+	/** Runs the async operations of the session, one at a time and in submission order */
+	private Executor asyncExecutor = DEFAULT_ASYNC_EXECUTOR;
+	
+	private CompletableFuture<?> lastAsyncOperation = CompletableFuture.completedFuture(null);
+	
+	void setAsyncExecutor(Executor asyncExecutor) {
+		this.asyncExecutor = asyncExecutor;
+	}
+	
+	/** Cached daemon threads, as async operations block on the connection and should not starve the session workers */
+	private static final Executor DEFAULT_ASYNC_EXECUTOR = Executors.newCachedThreadPool(r -> {
+		Thread thread = new Thread(r, "rsession-async");
+		thread.setDaemon(true);
+		return thread;
+	});
+	
+	@FunctionalInterface
+	private static interface AsyncOperation<T> {
+		T run() throws Exception;
+	}
+	
+	/** Queues the operation after the previous async ones, it runs even if they failed. Operations still queued when
+	 * the session is closed fail with a {@link CancellationException} instead of running
+	 */
+	private synchronized <T> CompletableFuture<T> submitAsync(AsyncOperation<T> operation) {
+		CompletableFuture<T> future = lastAsyncOperation.handle((result, error) -> null)
+			.thenApplyAsync(ignored -> {
+				if (closing.get()) {
+					throw new CancellationException("Session closed before the operation started");
+				}
+				try {
+					return operation.run();
+				} catch (Exception e) {
+					throw new CompletionException(e);
+				}
+			}, asyncExecutor);
+		lastAsyncOperation = future;
+		return future;
+	}
+	
+	/**
+	 * {@link #eval(String)} without blocking the caller. Async operations of the session run one after the other, in
+	 * submission order, and synchronous calls made meanwhile wait for the one in progress
+	 */
+	public CompletableFuture<REXP> evalAsync(String expression) {
+		return submitAsync(() -> eval(expression));
+	}
+	
+	/**
+	 * {@link #sendFile(File, String)} without blocking the caller, see {@link #evalAsync(String)}
+	 */
+	public CompletableFuture<Void> sendFileAsync(File localfile, String remoteFile) {
+		return submitAsync(() -> {
+			sendFile(localfile, remoteFile);
+			return null;
+		});
+	}
+	
+	/**
+	 * {@link #receiveFile(File, String)} without blocking the caller, see {@link #evalAsync(String)}
+	 */
+	public CompletableFuture<Void> receiveFileAsync(File localfile, String remoteFile) {
+		return submitAsync(() -> {
+			receiveFile(localfile, remoteFile);
+			return null;
+		});
+	}
+	
+	/** Single quoted R string literal
+	 */
+	static String quote(String value) {
+		return "'" + value.replace("\\", "\\\\").replace("'", "\\'") + "'";
+	}
+	
 	RConnection getConnection() {
 		return connection;
 	}
@@ -55,12 +197,253 @@ public class Rsession implements AutoCloseable {
 		}
 		log.debug("Eval expression: {}", expression);
 		REXP e = null;
-		synchronized (connection) {
+		connectionLock.lock();
+		try {
+			long start = System.nanoTime();
 			e = connection.parseAndEval(expression);
+			metrics.recordTime(RServerMetrics.EVAL, instance, System.nanoTime() - start);
+		} finally {
+			connectionLock.unlock();
 		}
 		return e;
 	}
 
+	/**
+	 * evaluates the expressions in a single request to Rserve, in order and in the global environment. An error in
+	 * one of them does not stop the following ones, it is returned as its result
+	 *
+	 * @param expressions R expressions
+	 * @return one result per expression, in the same order
+	 * @throws REXPMismatchException
+	 * @throws REngineException if the batch itself could not be evaluated
+	 */
+	public List<REvalResult> evalAll(List<String> expressions) throws REngineException, REXPMismatchException {
+		if (expressions.isEmpty()) {
+			return List.of();
+		}
+		var batch = new StringBuilder("lapply(c(");
+		for (int i = 0; i < expressions.size(); i++) {
+			batch.append(i > 0 ? ", " : "").append(quote(expressions.get(i)));
+		}
+		batch.append("), function(.expr) tryCatch(list(value = eval(parse(text = .expr), envir = globalenv())), ")
+			.append("error = function(e) list(error = conditionMessage(e))))");
+		RList replies = eval(batch.toString()).asList();
+		var results = new ArrayList<REvalResult>(expressions.size());
+		for (int i = 0; i < expressions.size(); i++) {
+			RList reply = ((REXP) replies.get(i)).asList();
+			REXP error = reply.at("error");
+			results.add(error != null ? REvalResult.failure(expressions.get(i), error.asString()) : REvalResult.success(expressions.get(i), reply.at("value")));
+		}
+		return results;
+	}
+
+	/**
+	 * assigns the values as an R numeric vector, in chunks of {@link #ASSIGN_CHUNK_SIZE} values if it is bigger
+	 */
+	public void assign(String name, double[] values) throws REngineException {
+		assignColumn(name, values);
+	}
+
+	/**
+	 * assigns the values as an R integer vector, in chunks of {@link #ASSIGN_CHUNK_SIZE} values if it is bigger.
+	 * {@link Integer#MIN_VALUE} is NA
+	 */
+	public void assign(String name, int[] values) throws REngineException {
+		assignColumn(name, values);
+	}
+
+	/**
+	 * assigns the values as an R character vector, in chunks of {@link #ASSIGN_CHUNK_SIZE} values if it is bigger.
+	 * Null values are NA
+	 */
+	public void assign(String name, String[] values) throws REngineException {
+		assignColumn(name, values);
+	}
+
+	/**
+	 * assigns the remaining values of the buffer as an R numeric vector. Off-heap buffers are copied to the heap
+	 * one chunk at a time, the buffer position is not changed
+	 */
+	public void assign(String name, DoubleBuffer values) throws REngineException {
+		assignColumn(name, values);
+	}
+
+	/**
+	 * assigns the table as an R data.frame, each column sent like the vectors of {@link #assign(String, double[])}
+	 */
+	public void assign(String name, RTable table) throws REngineException {
+		connectionLock.lock();
+		try {
+			var names = new StringBuilder();
+			var values = new StringBuilder();
+			int i = 0;
+			for (var column : table.getColumns().entrySet()) {
+				String columnVariable = ".rserver.column" + i;
+				assignColumn(columnVariable, column.getValue());
+				names.append(i > 0 ? ", " : "").append(quote(column.getKey()));
+				values.append(i > 0 ? ", " : "").append(columnVariable);
+				i++;
+			}
+			try {
+				connection.voidEval(name + " <- structure(list(" + values + "), names = c(" + names + "), row.names = c(NA_integer_, -" + table.getRows() + "L), class = 'data.frame')");
+			} finally {
+				if (i > 0) {
+					connection.voidEval("rm(list = ls(pattern = '^\\\\.rserver\\\\.column', all.names = TRUE))");
+				}
+			}
+		} finally {
+			connectionLock.unlock();
+		}
+	}
+
+	private void assignColumn(String name, Object values) throws REngineException {
+		int length = RTable.length(values);
+		log.debug("Assigning {} values to {}", length, name);
+		connectionLock.lock();
+		try {
+			if (length <= ASSIGN_CHUNK_SIZE) {
+				connection.assign(name, vectorChunk(values, 0, length));
+				return;
+			}
+			connection.voidEval(name + " <- " + (values instanceof int[] ? "integer" : values instanceof String[] ? "character" : "numeric") + "(" + length + ")");
+			try {
+				for (int from = 0; from < length; from += ASSIGN_CHUNK_SIZE) {
+					int to = Math.min(from + ASSIGN_CHUNK_SIZE, length);
+					connection.assign(ASSIGN_CHUNK_VARIABLE, vectorChunk(values, from, to));
+					connection.voidEval(name + "[" + (from + 1) + ":" + to + "] <- " + ASSIGN_CHUNK_VARIABLE);
+				}
+			} finally {
+				connection.voidEval("rm(" + ASSIGN_CHUNK_VARIABLE + ")");
+			}
+		} finally {
+			connectionLock.unlock();
+		}
+	}
+
+	private static REXP vectorChunk(Object values, int from, int to) {
+		if (values instanceof double[]) {
+			double[] array = (double[]) values;
+			return new REXPDouble(from == 0 && to == array.length ? array : Arrays.copyOfRange(array, from, to));
+		} else if (values instanceof int[]) {
+			int[] array = (int[]) values;
+			return new REXPInteger(from == 0 && to == array.length ? array : Arrays.copyOfRange(array, from, to));
+		} else if (values instanceof String[]) {
+			String[] array = (String[]) values;
+			return new REXPString(from == 0 && to == array.length ? array : Arrays.copyOfRange(array, from, to));
+		}
+		DoubleBuffer buffer = (DoubleBuffer) values;
+		double[] chunk = new double[to - from];
+		buffer.duplicate().position(buffer.position() + from).get(chunk);
+		return new REXPDouble(chunk);
+	}
+
+	/**
+	 * length of the R object, without retrieving it
+	 */
+	public long length(String name) throws REngineException, REXPMismatchException {
+		return (long) eval("as.double(length(" + name + "))").asDouble();
+	}
+
+	/**
+	 * copies a slice of the R vector into the array, converting it to numeric
+	 *
+	 * @param name R vector
+	 * @param offset first element of the slice, from 0
+	 * @param target where the values are copied
+	 * @param targetOffset position of the first value in target
+	 * @param count number of values
+	 */
+	public void read(String name, long offset, double[] target, int targetOffset, int count) throws REngineException, REXPMismatchException {
+		for (int done = 0; done < count; done += READ_CHUNK_SIZE) {
+			int chunk = Math.min(READ_CHUNK_SIZE, count - done);
+			System.arraycopy(slice(name, offset + done, chunk).asDoubles(), 0, target, targetOffset + done, chunk);
+		}
+	}
+
+	/**
+	 * copies a slice of the R vector into the array, converting it to integer. NA is {@link Integer#MIN_VALUE}
+	 *
+	 * @see #read(String, long, double[], int, int)
+	 */
+	public void read(String name, long offset, int[] target, int targetOffset, int count) throws REngineException, REXPMismatchException {
+		for (int done = 0; done < count; done += READ_CHUNK_SIZE) {
+			int chunk = Math.min(READ_CHUNK_SIZE, count - done);
+			System.arraycopy(slice(name, offset + done, chunk).asIntegers(), 0, target, targetOffset + done, chunk);
+		}
+	}
+
+	/**
+	 * copies a slice of the R vector into the array, converting it to character. NA is null
+	 *
+	 * @see #read(String, long, double[], int, int)
+	 */
+	public void read(String name, long offset, String[] target, int targetOffset, int count) throws REngineException, REXPMismatchException {
+		for (int done = 0; done < count; done += READ_CHUNK_SIZE) {
+			int chunk = Math.min(READ_CHUNK_SIZE, count - done);
+			System.arraycopy(slice(name, offset + done, chunk).asStrings(), 0, target, targetOffset + done, chunk);
+		}
+	}
+
+	/**
+	 * copies the whole R vector into the buffer from its position, in chunks of {@link #READ_CHUNK_SIZE} values,
+	 * so only one chunk is on the heap at a time even if the buffer is off-heap
+	 *
+	 * @return number of values copied
+	 * @throws BufferOverflowException if the vector does not fit in the remaining values of the buffer
+	 */
+	public long read(String name, DoubleBuffer target) throws REngineException, REXPMismatchException {
+		connectionLock.lock();
+		try {
+			long length = length(name);
+			if (length > target.remaining()) {
+				throw new BufferOverflowException();
+			}
+			for (long offset = 0; offset < length; offset += READ_CHUNK_SIZE) {
+				target.put(slice(name, offset, (int) Math.min(READ_CHUNK_SIZE, length - offset)).asDoubles());
+			}
+			return length;
+		} finally {
+			connectionLock.unlock();
+		}
+	}
+
+	/**
+	 * hands each column of the R data.frame to the consumer, in slices of at most {@link #READ_CHUNK_SIZE} rows
+	 *
+	 * @param name R data.frame
+	 * @param consumer called for each slice, column by column and in row order
+	 */
+	public void readColumns(String name, ColumnChunkConsumer consumer) throws REngineException, REXPMismatchException {
+		connectionLock.lock();
+		try {
+			String[] columns = eval("names(" + name + ")").asStrings();
+			long rows = (long) eval("as.double(nrow(" + name + "))").asDouble();
+			for (int i = 0; i < columns.length; i++) {
+				String column = name + "[[" + (i + 1) + "]]";
+				for (long offset = 0; offset < rows; offset += READ_CHUNK_SIZE) {
+					consumer.accept(columns[i], offset, slice(column, offset, (int) Math.min(READ_CHUNK_SIZE, rows - offset)));
+				}
+			}
+		} finally {
+			connectionLock.unlock();
+		}
+	}
+
+	/** Receives the slices of {@link Rsession#readColumns(String, ColumnChunkConsumer)}
+	 */
+	public static interface ColumnChunkConsumer {
+		/**
+		 * @param column name of the column
+		 * @param offset row of the first value of the chunk, from 0
+		 * @param chunk values of the slice
+		 */
+		public void accept(String column, long offset, REXP chunk) throws REXPMismatchException;
+	}
+
+	private REXP slice(String name, long offset, int count) throws REngineException, REXPMismatchException {
+		return eval(name + "[" + (offset + 1) + ":" + (offset + count) + "]");
+	}
+
 	/**
 	 * sends and sources a R source file (eg ".R" file)
 	 *
@@ -74,6 +457,24 @@ public class Rsession implements AutoCloseable {
 		eval("source('" + f.getName() + "')");
 	}
 
+	/**
+	 * streams the lines from memory to a remote file, sources it and removes it, without writing them to local disk
+	 *
+	 * @param lines R code to run
+	 * @throws REXPMismatchException
+	 * @throws REngineException
+	 * @throws IOException
+	 */
+	public void source(List<String> lines) throws REngineException, REXPMismatchException, IOException {
+		String remoteFile = "script-" + UUID.randomUUID() + ".R";
+		sendFile(ByteBuffer.wrap(String.join("\n", lines).concat("\n").getBytes(StandardCharsets.UTF_8)), remoteFile);
+		try {
+			eval("source(" + quote(remoteFile) + ", encoding = 'UTF-8')");
+		} finally {
+			removeFile(remoteFile);
+		}
+	}
+
 	/**
 	 * sends and loads an R data file (eg ".Rdata" file)
 	 *
@@ -88,7 +489,7 @@ public class Rsession implements AutoCloseable {
 	}
 
 	/**
-	 * Get file from R environment to user filesystem
+	 * Get file from R environment to user filesystem, compressed on the R side if it is bigger than {@link RServerInstance#getCompressionThreshold()}
 	 *
 	 * @param localfile
 	 *            local filesystem file
@@ -96,17 +497,49 @@ public class Rsession implements AutoCloseable {
 	 *            R environment file name
 	 */
 	public void receiveFile(File localfile, String remoteFile) throws IOException {
+		boolean compressed = false;
+		if (instance.getCompressionThreshold() != null) {
+			try {
+				compressed = eval("file.info(" + quote(remoteFile) + ")$size").asDouble() >= instance.getCompressionThreshold();
+			} catch (REngineException | REXPMismatchException e) {
+				throw new IOException("Could not get size of " + remoteFile, e);
+			}
+		}
+		receiveFile(localfile, remoteFile, compressed);
+	}
+	
+	/**
+	 * Get file from R environment to user filesystem
+	 *
+	 * @param localfile
+	 *            local filesystem file
+	 * @param remoteFile
+	 *            R environment file name
+	 * @param compressed
+	 *            whether R gzips the file before the transfer, so less bytes go through the connection
+	 */
+	public void receiveFile(File localfile, String remoteFile, boolean compressed) throws IOException {
 		if (localfile.exists()) {
 			localfile.delete();
 		}
-		log.debug("Transferring {} to file {}", remoteFile, localfile.getAbsolutePath());
-		synchronized (connection) {
+		log.debug("Transferring {} to file {}{}", remoteFile, localfile.getAbsolutePath(), compressed ? " compressed" : "");
+		String transferredFile = compressed ? remoteFile + GZIP_SUFFIX : remoteFile;
+		connectionLock.lock();
+		try {
+			if (compressed) {
+				copyRemote(remoteFile, "file", transferredFile, "gzfile");
+			}
 			try(
-				InputStream is = new BufferedInputStream(connection.openFile(remoteFile));
-				OutputStream os = new BufferedOutputStream(new FileOutputStream(localfile));
+				InputStream is = compressed ? openCompressedRemoteFile(transferredFile) : openRemoteFile(transferredFile);
+				FileChannel channel = FileChannel.open(localfile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
 			) {
-				is.transferTo(os);
+				readRemote(is, channel);
+			}
+			if (compressed) {
+				removeTransferredFile(transferredFile);
 			}
+		} finally {
+			connectionLock.unlock();
 		}
 	}
 
@@ -117,8 +550,11 @@ public class Rsession implements AutoCloseable {
 	 */
 	public void removeFile(String remoteFile) throws RserveException {
 		log.debug("Removing {}", remoteFile);
-		synchronized (connection) {
+		connectionLock.lock();
+		try {
 			connection.removeFile(remoteFile);
+		} finally {
+			connectionLock.unlock();
 		}
 	}
 
@@ -133,33 +569,363 @@ public class Rsession implements AutoCloseable {
 	}
 
 	/**
-	 * Send user filesystem file in r environement (like data)
+	 * Send user filesystem file in r environement (like data), compressed if it is bigger than {@link RServerInstance#getCompressionThreshold()}
 	 *
 	 * @param localfile File to send
 	 * @param remoteFile filename in R env.
 	 */
 	public void sendFile(File localfile, String remoteFile) throws IOException {
+		boolean compressed = instance.getCompressionThreshold() != null && localfile.length() >= instance.getCompressionThreshold();
+		sendFile(localfile, remoteFile, compressed);
+	}
+	
+	/**
+	 * Send user filesystem file in r environement (like data)
+	 *
+	 * @param localfile File to send
+	 * @param remoteFile filename in R env.
+	 * @param compressed whether the file is gzipped while it is sent and then decompressed by R, so less bytes go through the connection
+	 */
+	public void sendFile(File localfile, String remoteFile, boolean compressed) throws IOException {
 		if (!localfile.exists()) {
 			throw new FileNotFoundException(localfile.getAbsolutePath());
 		}
-		log.debug("Transferring file {} to {}", localfile.getAbsolutePath(), remoteFile);
-		synchronized (connection) {
+		log.debug("Transferring file {} to {}{}", localfile.getAbsolutePath(), remoteFile, compressed ? " compressed" : "");
+		String transferredFile = compressed ? remoteFile + GZIP_SUFFIX : remoteFile;
+		connectionLock.lock();
+		try {
 			try(
-				OutputStream os = new BufferedOutputStream(connection.createFile(remoteFile));
-				InputStream is = new BufferedInputStream(new FileInputStream(localfile));
+				OutputStream os = compressed ? new GZIPOutputStream(createRemoteFile(transferredFile), TRANSFER_BUFFER_SIZE) : createRemoteFile(transferredFile);
+				FileChannel channel = FileChannel.open(localfile.toPath(), StandardOpenOption.READ);
 			) {
-				is.transferTo(os);
+				writeRemote(channel, os);
+			}
+			if (compressed) {
+				copyRemote(transferredFile, "gzfile", remoteFile, "file");
+				removeTransferredFile(transferredFile);
+			}
+		} finally {
+			connectionLock.unlock();
+		}
+	}
+	
+	/**
+	 * Send the remaining content of the stream to a file in r environement, without staging it in a local file
+	 *
+	 * @param source content to send, not closed
+	 * @param remoteFile filename in R env.
+	 */
+	public void sendFile(InputStream source, String remoteFile) throws IOException {
+		sendFile(Channels.newChannel(source), remoteFile);
+	}
+	
+	/**
+	 * Send the remaining content of the channel to a file in r environement, without staging it in a local file
+	 *
+	 * @param source content to send, not closed
+	 * @param remoteFile filename in R env.
+	 */
+	public void sendFile(ReadableByteChannel source, String remoteFile) throws IOException {
+		log.debug("Transferring channel to {}", remoteFile);
+		connectionLock.lock();
+		try(OutputStream os = createRemoteFile(remoteFile)) {
+			writeRemote(source, os);
+		} finally {
+			connectionLock.unlock();
+		}
+	}
+	
+	/**
+	 * Send the remaining bytes of the buffer to a file in r environement, without staging them in a local file
+	 *
+	 * @param source content to send, its position is moved to its limit
+	 * @param remoteFile filename in R env.
+	 */
+	public void sendFile(ByteBuffer source, String remoteFile) throws IOException {
+		log.debug("Transferring {} bytes to {}", source.remaining(), remoteFile);
+		connectionLock.lock();
+		try(OutputStream os = createRemoteFile(remoteFile)) {
+			writeRemote(source, os);
+		} finally {
+			connectionLock.unlock();
+		}
+	}
+	
+	/**
+	 * Get file from R environment into a stream, without staging it in a local file
+	 *
+	 * @param remoteFile R environment file name
+	 * @param target where the content is written, not closed
+	 */
+	public void receiveFile(String remoteFile, OutputStream target) throws IOException {
+		log.debug("Transferring {} to stream", remoteFile);
+		connectionLock.lock();
+		try(InputStream is = openRemoteFile(remoteFile)) {
+			byte[] chunk = getTransferBuffer();
+			for (int read = is.read(chunk, 0, chunk.length); read >= 0; read = is.read(chunk, 0, chunk.length)) {
+				target.write(chunk, 0, read);
+			}
+		} finally {
+			connectionLock.unlock();
+		}
+	}
+	
+	/**
+	 * Get file from R environment into a channel, without staging it in a local file
+	 *
+	 * @param remoteFile R environment file name
+	 * @param target where the content is written, not closed
+	 */
+	public void receiveFile(String remoteFile, WritableByteChannel target) throws IOException {
+		log.debug("Transferring {} to channel", remoteFile);
+		connectionLock.lock();
+		try(InputStream is = openRemoteFile(remoteFile)) {
+			readRemote(is, target);
+		} finally {
+			connectionLock.unlock();
+		}
+	}
+	
+	/**
+	 * Get file from R environment into a buffer, without staging it in a local file
+	 *
+	 * @param remoteFile R environment file name
+	 * @param target where the content is put, from its position
+	 * @return number of bytes received
+	 * @throws BufferOverflowException if the file does not fit in the remaining bytes of the buffer
+	 */
+	public int receiveFile(String remoteFile, ByteBuffer target) throws IOException {
+		log.debug("Transferring {} to buffer", remoteFile);
+		int start = target.position();
+		connectionLock.lock();
+		try(InputStream is = openRemoteFile(remoteFile)) {
+			byte[] chunk = getTransferBuffer();
+			while (true) {
+				int read;
+				if (target.hasArray()) {
+					read = is.read(target.array(), target.arrayOffset() + target.position(), Math.min(target.remaining(), chunk.length));
+					if (read > 0) {
+						target.position(target.position() + read);
+					}
+				} else {
+					read = is.read(chunk, 0, Math.min(target.remaining(), chunk.length));
+					if (read > 0) {
+						target.put(chunk, 0, read);
+					}
+				}
+				if (read < 0) {
+					break;
+				} else if (!target.hasRemaining() && is.read(chunk, 0, 1) >= 0) {
+					throw new BufferOverflowException();
+				}
 			}
+		} finally {
+			connectionLock.unlock();
+		}
+		return target.position() - start;
+	}
+	
+	/** Writes the local file to the remote stream in chunks of {@link #TRANSFER_BUFFER_SIZE}, each of them a single
+	 * request to Rserve. Big files are read through memory mapped regions instead of copying them into intermediate buffers
+	 */
+	private void writeRemote(FileChannel source, OutputStream remote) throws IOException {
+		long size = source.size();
+		if (size < MAPPED_TRANSFER_THRESHOLD) {
+			writeRemote((ReadableByteChannel) source, remote);
+			return;
+		}
+		for (long position = 0; position < size; position += MAPPED_REGION_SIZE) {
+			writeRemote(source.map(FileChannel.MapMode.READ_ONLY, position, Math.min(MAPPED_REGION_SIZE, size - position)), remote);
+		}
+	}
+	
+	private void writeRemote(ReadableByteChannel source, OutputStream remote) throws IOException {
+		byte[] chunk = getTransferBuffer();
+		ByteBuffer buffer = ByteBuffer.wrap(chunk);
+		boolean eof = false;
+		while (!eof) {
+			buffer.clear();
+			while (buffer.hasRemaining()) {
+				if (source.read(buffer) < 0) {
+					eof = true;
+					break;
+				}
+			}
+			if (buffer.position() > 0) {
+				remote.write(chunk, 0, buffer.position());
+			}
+		}
+	}
+	
+	private void writeRemote(ByteBuffer source, OutputStream remote) throws IOException {
+		byte[] chunk = source.hasArray() ? null : getTransferBuffer();
+		while (source.hasRemaining()) {
+			int length = Math.min(source.remaining(), TRANSFER_BUFFER_SIZE);
+			if (chunk == null) {
+				remote.write(source.array(), source.arrayOffset() + source.position(), length);
+				source.position(source.position() + length);
+			} else {
+				source.get(chunk, 0, length);
+				remote.write(chunk, 0, length);
+			}
+		}
+	}
+	
+	/** Reads the remote stream in chunks of {@link #TRANSFER_BUFFER_SIZE}, each of them a single request to Rserve
+	 */
+	private void readRemote(InputStream remote, WritableByteChannel target) throws IOException {
+		byte[] chunk = getTransferBuffer();
+		for (int read = remote.read(chunk, 0, chunk.length); read >= 0; read = remote.read(chunk, 0, chunk.length)) {
+			ByteBuffer buffer = ByteBuffer.wrap(chunk, 0, read);
+			while (buffer.hasRemaining()) {
+				target.write(buffer);
+			}
+		}
+	}
+	
+	/** Stream of the remote file counting the bytes read as {@link RServerMetrics#BYTES_RECEIVED} */
+	private InputStream openRemoteFile(String remoteFile) throws IOException {
+		return new FilterInputStream(connection.openFile(remoteFile)) {
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				int read = super.read(b, off, len);
+				if (read > 0) {
+					metrics.increment(RServerMetrics.BYTES_RECEIVED, instance, read);
+				}
+				return read;
+			}
+		};
+	}
+	
+	/** Decompressing stream of a remote gzip file. {@link GZIPInputStream} reads the header byte by byte, so single bytes
+	 * are read through the array method, as the Rserve stream returns them signed
+	 */
+	private InputStream openCompressedRemoteFile(String remoteFile) throws IOException {
+		return new GZIPInputStream(new FilterInputStream(openRemoteFile(remoteFile)) {
+			@Override
+			public int read() throws IOException {
+				byte[] single = new byte[1];
+				return read(single, 0, 1) < 0 ? -1 : single[0] & 0xFF;
+			}
+		}, TRANSFER_BUFFER_SIZE);
+	}
+	
+	/** Stream of the remote file counting the bytes written as {@link RServerMetrics#BYTES_SENT} */
+	private OutputStream createRemoteFile(String remoteFile) throws IOException {
+		return new FilterOutputStream(connection.createFile(remoteFile)) {
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				out.write(b, off, len);
+				metrics.increment(RServerMetrics.BYTES_SENT, instance, len);
+			}
+		};
+	}
+	
+	/** Chunk reused by the transfers of the session, only used while holding the connection lock */
+	private byte[] transferBuffer;
+	
+	private byte[] getTransferBuffer() {
+		if (transferBuffer == null) {
+			transferBuffer = new byte[TRANSFER_BUFFER_SIZE];
+		}
+		return transferBuffer;
+	}
+	
+	/** Copies a file on the R side, reading and writing it through the given connection functions, eg gzfile to (de)compress it
+	 */
+	private void copyRemote(String source, String sourceConnection, String target, String targetConnection) throws IOException {
+		try {
+			eval("local({ "
+				+ "input <- " + sourceConnection + "(" + quote(source) + ", 'rb'); "
+				+ "output <- " + targetConnection + "(" + quote(target) + ", 'wb'); "
+				+ "on.exit({ close(input); close(output) }); "
+				+ "repeat { chunk <- readBin(input, 'raw', " + TRANSFER_BUFFER_SIZE + "L); if (length(chunk) == 0L) break; writeBin(chunk, output) } })");
+		} catch (REngineException | REXPMismatchException e) {
+			throw new IOException("Could not copy " + source + " to " + target, e);
+		}
+	}
+	
+	private void removeTransferredFile(String remoteFile) throws IOException {
+		try {
+			removeFile(remoteFile);
+		} catch (RserveException e) {
+			throw new IOException("Could not remove " + remoteFile, e);
+		}
+	}
+	
+	private final static String GZIP_SUFFIX = ".gz";
+	
+	/** Values sent in each request when assigning big vectors, so they are never copied whole into a request */
+	public final static int ASSIGN_CHUNK_SIZE = 1024 * 1024;
+	
+	/** Values retrieved in each request when reading big vectors, bounding the size of the decoded {@link REXP} */
+	public final static int READ_CHUNK_SIZE = 1024 * 1024;
+	
+	private final static String ASSIGN_CHUNK_VARIABLE = ".rserver.chunk";
+	
+	/** Bytes sent or requested in each file transfer request, instead of the 8 KB of buffered streams */
+	private final static int TRANSFER_BUFFER_SIZE = 1024 * 1024;
+	
+	private final static long MAPPED_TRANSFER_THRESHOLD = 64l * 1024 * 1024, MAPPED_REGION_SIZE = 256l * 1024 * 1024;
+
+	/**
+	 * Send user filesystem file in r environement through the cache of the instance, see {@link RServerInstance#getAuxFileCacheDirectory()}.
+	 * The file is only uploaded if its content is not cached yet, otherwise it is linked from the cache
+	 *
+	 * @param localfile File to send
+	 */
+	public void sendCachedFile(File localfile) throws IOException, REngineException, REXPMismatchException {
+		if (auxFileCache == null) {
+			sendFile(localfile);
+		} else {
+			auxFileCache.sendFile(this, localfile, localfile.getName());
 		}
 	}
 
+	/**
+	 * Cancels the queued async operations, waits for the one in progress and then closes the connection, or gives
+	 * it back to the pool. An {@link #abort()} meanwhile closes the connection and stops the wait
+	 */
 	@Override
 	public void close() {
-		if (connection == null) {
+		if (connection == null || !closing.compareAndSet(false, true)) {
+			return;
+		}
+		CompletableFuture<?> pendingAsyncOperations;
+		synchronized (this) {
+			pendingAsyncOperations = lastAsyncOperation;
+		}
+		pendingAsyncOperations.handle((result, error) -> null).join();
+		connectionLock.lock();
+		try {
+			if (!closed.compareAndSet(false, true)) {
+				return;
+			}
+			if (pool != null) {
+				log.debug("Giving back connection with {}", instance);
+				pool.giveBack(pooledConnection);
+			} else {
+				log.info("Closing connection with {}", instance);
+				connection.close();
+			}
+		} finally {
+			connectionLock.unlock();
+		}
+	}
+	
+	/** Closes the connection right away, even if it is being used or the session is closing, so it is never reused
+	 */
+	void abort() {
+		if (connection == null || !closed.compareAndSet(false, true)) {
 			return;
 		}
-		log.info("Closing connection with {}", instance);
-		connection.close();
+		closing.set(true);
+		log.info("Aborting connection with {}", instance);
+		if (pool != null) {
+			pool.discard(pooledConnection);
+		} else {
+			connection.close();
+		}
 	}
 
 }
\ No newline at end of file
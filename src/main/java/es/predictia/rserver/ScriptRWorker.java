@@ -0,0 +1,56 @@
+package es.predictia.rserver;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+
+import lombok.extern.slf4j.Slf4j;
+
+/** Worker of a {@link RScript}, whose result files are taken from the {@link RSessionFactory#getResultCache()} if
+ * the script has run before, and stored there after running otherwise
+ */
+@Slf4j
+class ScriptRWorker extends SimpleRWorker {
+
+	private final RScript script;
+	
+	private volatile RScriptResultCache resultCache;
+	
+	private volatile String resultKey;
+	
+	ScriptRWorker(RScript script) {
+		super(script::runWithinSession);
+		this.script = script;
+	}
+	
+	@Override
+	public CompletableFuture<RWorker> run(RSessionFactory sessionFactory, RSessionRequest request) throws Exception {
+		var cache = sessionFactory.getResultCache();
+		if(cache.isPresent() && Boolean.TRUE.equals(script.getMemoizeResults()) && !script.getResultFiles().isEmpty()) {
+			try {
+				String key = cache.get().key(script);
+				if(cache.get().copyResults(key, script)) {
+					finishedWithoutSession();
+					return CompletableFuture.completedFuture(this);
+				}
+				this.resultCache = cache.get();
+				this.resultKey = key;
+			} catch (IOException e) {
+				log.warn("Could not check result cache: {}", e.getMessage());
+			}
+		}
+		return super.run(sessionFactory, request);
+	}
+	
+	@Override
+	public void run(Rsession session) throws Throwable {
+		super.run(session);
+		if(resultCache != null) {
+			try {
+				resultCache.storeResults(resultKey, script);
+			} catch (IOException e) {
+				log.warn("Could not store results in cache: {}", e.getMessage());
+			}
+		}
+	}
+	
+}
@@ -1,93 +1,80 @@
 package es.predictia.rserver;
 
-import java.time.Duration;
-import java.time.LocalDateTime;
 import java.util.Optional;
+import java.util.Set;
 import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
 
-import lombok.Data;
-import lombok.RequiredArgsConstructor;
+import lombok.AccessLevel;
+import lombok.Getter;
+import lombok.Setter;
 import lombok.extern.slf4j.Slf4j;
 
-@RequiredArgsConstructor
-@Data
+@Getter
 @Slf4j
 class SessionTasks {
 	
 	private final RSessionRequest sessionRequest;
 	private final RWorker worker;
 	private final RSessionFactory sessionFactory;
+	/** Taken from the request when it is submitted, so changing the request afterwards does not break the order of
+	 * the queue or the accounting of the resources
+	 */
+	private final int priority, requestedResources;
 	
-	private CompletableFuture<Rsession> sessionFuture;
-	private CompletableFuture<RWorker> workerFuture;
-
-	public boolean isDone(){
-		return workerFuture != null && workerFuture.isDone();
+	SessionTasks(RSessionRequest sessionRequest, RWorker worker, RSessionFactory sessionFactory) {
+		this.sessionRequest = sessionRequest;
+		this.worker = worker;
+		this.sessionFactory = sessionFactory;
+		this.priority = sessionRequest.getPriority();
+		this.requestedResources = sessionRequest.getRequestedResources();
 	}
 	
-	public boolean cancelExpiredWorker(){
-		if(sessionRequest.getAcceptedTime() == null){
-			return false;
-		}else if(workerFuture == null){
-			return false;
-		}else if(workerFuture.isDone()){
-			return false;
-		}
-		Optional<Rsession> oSession = getRSession();
-		if(!oSession.isPresent()){
-			return false;
-		}
-		Long reqTime = sessionRequest.getRequestedTime();
-		TimeUnit reqTimeUnit = sessionRequest.getRequestedTimeUnit();
-		Duration jobDuration = Duration.between(sessionRequest.getAcceptedTime(), LocalDateTime.now());
-		if(jobDuration.toSeconds() > TimeUnit.SECONDS.convert(reqTime, reqTimeUnit)){
-			log.debug("Session: " + sessionRequest + " exhausted its time");
-			oSession.get().close();
-			workerFuture.cancel(true);
-			return true;
-		}else{
-			log.debug("Session: {} still in time: {}", sessionRequest, jobDuration);
-			return false;
+	@Setter(AccessLevel.PACKAGE)
+	private CompletableFuture<RServerInstance> instanceFuture;
+	@Setter(AccessLevel.PACKAGE)
+	private ScheduledFuture<?> queueTimeout;
+	@Setter(AccessLevel.PACKAGE)
+	private long queueSequence;
+	@Setter(AccessLevel.PACKAGE)
+	private InstanceResources reservedResources;
+	@Setter(AccessLevel.PACKAGE)
+	private ScheduledFuture<?> expiry;
+	private volatile CompletableFuture<Rsession> sessionFuture;
+	private volatile CompletableFuture<RWorker> workerFuture;
+	/** Completed once the worker is done and the resources of its session are released */
+	private CompletableFuture<RWorker> completion;
+
+	private volatile boolean expired = false;
+	
+	/** Instances this session could not connect to, not assigned to it again */
+	private final Set<RServerInstance> failedInstances = ConcurrentHashMap.newKeySet();
+	
+	/** Run when the {@link RSessionRequest#getRequestedTime()} of the accepted session elapses, closes the session and cancels the worker
+	 */
+	void expire(){
+		expired = true;
+		if(workerFuture == null || workerFuture.isDone()){
+			return;
 		}
+		log.debug("Session: " + sessionRequest + " exhausted its time");
+		getRSession().ifPresent(Rsession::abort);
+		workerFuture.cancel(true);
 	}
 	
 	private Optional<Rsession> getRSession(){
 		if(sessionFuture == null){
 			return Optional.empty();
-		}else if(!sessionFuture.isDone()){
-			return Optional.empty();
-		}
-		try{
-			return Optional.of(sessionFuture.get());
-		}catch(Exception e){
-			log.debug("Session {} could not be created", sessionRequest);
+		}else if(!sessionFuture.isDone() || sessionFuture.isCompletedExceptionally()){
 			return Optional.empty();
 		}
+		return Optional.of(sessionFuture.join());
 	}
 	
 	public CompletableFuture<RWorker> launchWorker() {
-		this.sessionFuture = CompletableFuture.supplyAsync(() -> {
-			boolean first = true;
-			Optional<RServerInstance> availableInstance = Optional.empty();
-			Stopwatch stopwatch = Stopwatch.createStarted();
-			try {
-				while(!availableInstance.isPresent()){
-					if(!first){
-						Thread.sleep(POLL_INTERVAL);
-						if(stopwatch.getDuration().toSeconds() > TimeUnit.SECONDS.convert(sessionRequest.getMaxQueueTime(), sessionRequest.getMaxQueueTimeUnit())){
-							throw new Exception("RSessionRequest in queue for too long");
-						}
-					}
-					availableInstance = sessionFactory.getInstanceForRequest(this);
-					first = false;
-				}
-				return new Rsession(sessionRequest.getInstance());
-			}catch (Exception e) {
-				log.warn("Error while creating session", e);
-				throw new RuntimeException(e);
-			}
-		}, sessionFactory.getExecutorService());
+		sessionFactory.workerLaunched();
+		this.sessionFuture = requestSession(Stopwatch.createStarted());
 		this.workerFuture = sessionFuture.thenApplyAsync(rsession -> {
 			try {
 				worker.run(rsession);
@@ -96,9 +83,42 @@ class SessionTasks {
 				throw new RuntimeException(e);
 			}
 		}, sessionFactory.getExecutorService());
+		this.sessionFuture.whenComplete((s, e) -> {
+			if(e != null && worker instanceof SimpleRWorker){
+				((SimpleRWorker) worker).sessionFailed(e);
+			}else if(s != null && workerFuture.isCancelled()){
+				s.abort();
+				sessionFactory.releaseInstance(this);
+			}
+		});
+		this.completion = this.workerFuture.whenComplete((w, e) -> {
+			if(workerFuture.isCancelled()){
+				getRSession().ifPresent(Rsession::abort);
+			}
+			sessionFactory.releaseInstance(this);
+			sessionFactory.workerFinished();
+		});
+		if(expired){
+			expire();
+		}
 		return this.workerFuture;
 	}
 	
-	private static final long POLL_INTERVAL = 5000l;
+	/** Session on the instance assigned by the factory, queueing again for another one if it cannot connect
+	 */
+	private CompletableFuture<Rsession> requestSession(Stopwatch stopwatch) {
+		return sessionFactory.requestInstance(this).thenComposeAsync(instance -> {
+			log.debug("Session request {} waited {} in queue", sessionRequest, stopwatch);
+			try {
+				return CompletableFuture.completedFuture(sessionFactory.createSession(instance, sessionRequest));
+			}catch (Exception e) {
+				log.warn("Error while creating session", e);
+				if(sessionFactory.retryOnAnotherInstance(this, instance)) {
+					return requestSession(stopwatch);
+				}
+				throw new RuntimeException(e);
+			}
+		}, sessionFactory.getExecutorService());
+	}
 	
-}
\ No newline at end of file
+}
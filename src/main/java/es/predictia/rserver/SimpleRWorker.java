@@ -1,5 +1,6 @@
 package es.predictia.rserver;
 
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import lombok.RequiredArgsConstructor;
@@ -17,6 +18,8 @@ public class SimpleRWorker implements RWorker {
 			isFinished = new AtomicBoolean(false),
 			anyErrors = new AtomicBoolean(false);
 	
+	private final CompletableFuture<SimpleRWorker> completion = new CompletableFuture<>();
+	
 	private final SessionConsumer sessionConsumer;
 	
 	public SimpleRWorker(SessionConsumer sessionConsumer) {
@@ -47,8 +50,37 @@ public class SimpleRWorker implements RWorker {
 		}finally{
 			session.close();
 			this.isFinished.set(true);
+			completion.complete(this);
 		}
 	}
+	
+	@Override
+	public CompletableFuture<RWorker> run(RSessionFactory sessionFactory, RSessionRequest request) throws Exception {
+		return RWorkers.runWithinRsession(this, sessionFactory, request);
+	}
+	
+	/** Marks the worker as finished with errors when it could not get a session to run within
+	 */
+	void sessionFailed(Throwable e) {
+		log.warn("No session for RWorker: {}", e.getMessage());
+		this.anyErrors.set(true);
+		this.isFinished.set(true);
+		completion.complete(this);
+	}
+	
+	/** Marks the worker as finished without errors when its results were available without running it
+	 */
+	void finishedWithoutSession() {
+		this.isStarted.set(true);
+		this.isFinished.set(true);
+		completion.complete(this);
+	}
+	
+	/** Future completed with this worker once it is finished, check {@link #anyErrors()} to know how it went 
+	 */
+	public CompletableFuture<SimpleRWorker> getCompletion() {
+		return completion;
+	}
 
 	@Override
 	public boolean isStarted() {
@@ -0,0 +1,133 @@
+package es.predictia.rserver;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.rosuda.REngine.REXP;
+import org.rosuda.REngine.REXPLogical;
+import org.rosuda.REngine.REXPNull;
+
+public class AuxFileCacheTest {
+	
+	private FakeRserve server;
+	
+	private RSessionFactory factory;
+	
+	private RServerInstance instance;
+	
+	/** Cache directory of the fake server by hash, most recently used last */
+	private final Map<String, byte[]> cached = new LinkedHashMap<>(16, 0.75f, true);
+	
+	private final List<File> localFiles = new ArrayList<>();
+	
+	private static final Pattern LOOKUP = Pattern.compile("file\\.path\\('/cache', '([0-9a-f]{64})'\\).*file\\.copy\\(cached, '([^']+)', overwrite = TRUE\\)"),
+		STORE = Pattern.compile("paste0\\('([0-9a-f]{64})'.*file\\.copy\\('([^']+)', partial.*cumsum\\(cached\\$size\\) > (\\d+)\\]");
+	
+	@Before
+	public void setUp() throws Exception {
+		server = new FakeRserve();
+		server.setEvaluator(this::evaluate);
+		instance = RServerInstance.builder().url(server.getUrl()).auxFileCacheDirectory("/cache").auxFileCacheMaxBytes(8l).build();
+		factory = new RSessionFactory();
+		factory.setAvailableInstances(List.of(instance));
+	}
+	
+	@After
+	public void tearDown() throws Exception {
+		server.close();
+		localFiles.forEach(File::delete);
+	}
+	
+	@Test
+	public void testMissThenHit() throws Exception {
+		File file = localFile("abcd");
+		send(file);
+		server.getFiles().clear();
+		send(file);
+		var cache = factory.getAuxFileCache(instance).get();
+		Assert.assertEquals(1, cache.getMisses());
+		Assert.assertEquals(1, cache.getHits());
+		Assert.assertEquals("abcd", new String(server.getFiles().get(file.getName()), StandardCharsets.UTF_8));
+	}
+	
+	@Test
+	public void testHitIsACopy() throws Exception {
+		File file = localFile("abcd");
+		send(file);
+		server.getFiles().clear();
+		send(file);
+		server.getFiles().get(file.getName())[0] = 'z';
+		Assert.assertEquals("abcd", new String(cached.values().iterator().next(), StandardCharsets.UTF_8));
+	}
+	
+	@Test
+	public void testLeastRecentlyUsedIsEvicted() throws Exception {
+		File first = localFile("1111"), second = localFile("2222"), third = localFile("3333");
+		send(first);
+		send(second);
+		send(first);
+		send(third);
+		Assert.assertEquals(2, cached.size());
+		send(first);
+		send(second);
+		var cache = factory.getAuxFileCache(instance).get();
+		Assert.assertEquals(2, cache.getHits());
+		Assert.assertEquals(4, cache.getMisses());
+	}
+	
+	private void send(File file) throws Exception {
+		var worker = new SimpleRWorker(session -> session.sendCachedFile(file));
+		worker.run(factory, RSessionRequest.createDefaultRequest()).get(5, TimeUnit.SECONDS);
+		Assert.assertFalse(worker.anyErrors());
+	}
+	
+	private File localFile(String content) throws Exception {
+		File file = File.createTempFile("aux-", ".csv");
+		Files.writeString(file.toPath(), content);
+		localFiles.add(file);
+		return file;
+	}
+	
+	/** Emulates the lookup and store expressions of {@link AuxFileCache} on the cache directory map */
+	private REXP evaluate(String expression) {
+		synchronized(cached) {
+			Matcher lookup = LOOKUP.matcher(expression);
+			if(lookup.find()) {
+				byte[] content = cached.get(lookup.group(1));
+				if(content == null) {
+					return new REXPLogical(false);
+				}
+				server.getFiles().put(lookup.group(2), content.clone());
+				return new REXPLogical(true);
+			}
+			Matcher store = STORE.matcher(expression);
+			if(store.find()) {
+				cached.put(store.group(1), server.getFiles().get(store.group(2)).clone());
+				long maxBytes = Long.parseLong(store.group(3)), size = 0;
+				var newestFirst = new ArrayList<Map.Entry<String, byte[]>>(cached.entrySet());
+				Collections.reverse(newestFirst);
+				for(Map.Entry<String, byte[]> entry : newestFirst) {
+					size += entry.getValue().length;
+					if(size > maxBytes) {
+						cached.remove(entry.getKey());
+					}
+				}
+			}
+			return new REXPNull();
+		}
+	}
+
+}
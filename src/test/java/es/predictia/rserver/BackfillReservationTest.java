@@ -0,0 +1,66 @@
+package es.predictia.rserver;
+
+import java.time.LocalDateTime;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class BackfillReservationTest {
+
+	@Test
+	public void testReservationAtShadowTime() {
+		var now = LocalDateTime.now();
+		var resources = instanceResources(4);
+		var running = runningSession(resources, 3, 10l, now);
+		var blocked = queuedSession(4, 60l);
+		var reservation = BackfillReservation.forRequest(blocked, Arrays.asList(resources), Arrays.asList(running), now).get();
+		Assert.assertEquals(now.plusMinutes(10), reservation.getShadowTime());
+		Assert.assertTrue(reservation.allows(resources, queuedSession(1, 5l), now));
+		Assert.assertFalse(reservation.allows(resources, queuedSession(1, 15l), now));
+	}
+	
+	@Test
+	public void testBackfillSpareResources() {
+		var now = LocalDateTime.now();
+		var resources = instanceResources(4);
+		var running = runningSession(resources, 3, 10l, now);
+		var blocked = queuedSession(2, 60l);
+		var reservation = BackfillReservation.forRequest(blocked, Arrays.asList(resources), Arrays.asList(running), now).get();
+		var longRequest = queuedSession(2, 120l);
+		Assert.assertTrue(reservation.allows(resources, queuedSession(1, 120l), now));
+		Assert.assertTrue(reservation.allows(resources, longRequest, now));
+		reservation.backfill(resources, longRequest, now);
+		Assert.assertFalse(reservation.allows(resources, queuedSession(1, 120l), now));
+	}
+	
+	@Test
+	public void testNoReservationForOversizedRequest() {
+		var now = LocalDateTime.now();
+		var resources = instanceResources(2);
+		Assert.assertFalse(BackfillReservation.forRequest(queuedSession(3, 1l), Arrays.asList(resources), Arrays.asList(), now).isPresent());
+	}
+	
+	private static InstanceResources instanceResources(int resourceNumber) {
+		return new InstanceResources(RServerInstance.builder()
+			.resources(resourceNumber)
+			.build());
+	}
+	
+	private static SessionTasks queuedSession(int resources, long minutes) {
+		return new SessionTasks(RSessionRequest.builder()
+			.requestedResources(resources)
+			.requestedTimeAndUnit(minutes, TimeUnit.MINUTES)
+			.build(), null, null);
+	}
+	
+	private static SessionTasks runningSession(InstanceResources instanceResources, int resources, long minutes, LocalDateTime acceptedTime) {
+		var tasks = queuedSession(resources, minutes);
+		Assert.assertTrue(instanceResources.tryReserve(resources));
+		tasks.getSessionRequest().setAcceptedTime(acceptedTime);
+		tasks.setReservedResources(instanceResources);
+		return tasks;
+	}
+	
+}
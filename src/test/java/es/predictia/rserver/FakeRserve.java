@@ -0,0 +1,429 @@
+package es.predictia.rserver;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+import org.rosuda.REngine.REXP;
+import org.rosuda.REngine.REXPMismatchException;
+import org.rosuda.REngine.REXPNull;
+import org.rosuda.REngine.Rserve.protocol.REXPFactory;
+
+import lombok.extern.slf4j.Slf4j;
+
+/** In-process stand-in for Rserve speaking QAP1 on a local port, so sessions can be opened without R installed.
+ * Expressions are answered by {@link #setEvaluator(Function)} after {@link #setEvalLatency(Function)}, files live in
+ * memory and assigned values are kept in {@link #getVariables()}. Login is required once {@link #setCredentials(String, String)}
+ * is set, and {@link #setFaultInjector(FaultInjector)} makes connections and commands fail
+ */
+@Slf4j
+public class FakeRserve implements Closeable {
+
+	static final int CMD_LOGIN = 1, CMD_VOID_EVAL = 2, CMD_EVAL = 3, CMD_SHUTDOWN = 4, CMD_OPEN_FILE = 16, CMD_CREATE_FILE = 17,
+		CMD_CLOSE_FILE = 18, CMD_READ_FILE = 19, CMD_WRITE_FILE = 20, CMD_REMOVE_FILE = 21, CMD_SET_SEXP = 32;
+
+	static final int DT_INT = 1, DT_STRING = 4, DT_BYTESTREAM = 5, DT_SEXP = 10, DT_LARGE = 64;
+
+	static final int RESP_OK = 0x10001, RESP_ERR = 0x10002;
+
+	static final int ERR_AUTH_FAILED = 65, ERR_INV_CMD = 67, ERR_IO = 70, ERR_NOT_OPEN = 71, ERR_EVAL = 127;
+
+	private final ServerSocket serverSocket;
+
+	private final ExecutorService connections = Executors.newCachedThreadPool(r -> {
+		Thread thread = new Thread(r, "fake-rserve");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	private final Map<String, byte[]> files = new ConcurrentHashMap<>();
+
+	private final Map<String, REXP> variables = new ConcurrentHashMap<>();
+
+	private volatile Function<String, REXP> evaluator = expression -> new REXPNull();
+
+	private volatile Function<String, Duration> evalLatency = expression -> Duration.ZERO;
+
+	private volatile String user, password;
+
+	private volatile FaultInjector faultInjector = command -> Fault.NONE;
+
+	private final AtomicInteger openConnections = new AtomicInteger();
+
+	private final AtomicLong acceptedConnections = new AtomicLong(), commands = new AtomicLong(), injectedFaults = new AtomicLong();
+
+	/** Pseudo command passed to the {@link FaultInjector} when a connection is accepted */
+	public static final int CONNECT = -1;
+
+	/** What happens to a connection or command */
+	public enum Fault {
+		NONE,
+		/** The command gets an error reply, or the connection is closed before the handshake */
+		ERROR,
+		/** The connection is closed without replying */
+		DISCONNECT
+	}
+
+	@FunctionalInterface
+	public static interface FaultInjector {
+		/**
+		 * @param command QAP1 command code, {@link FakeRserve#CONNECT} for new connections
+		 */
+		Fault inject(int command);
+	}
+
+	/** Injects faults at random with the given rates, the same seed gives the same sequence of faults
+	 * @param refuseRate fraction of connections closed before the handshake
+	 * @param errorRate fraction of commands with an error reply
+	 * @param disconnectRate fraction of commands closing the connection
+	 */
+	public static FaultInjector randomFaults(long seed, double refuseRate, double errorRate, double disconnectRate) {
+		var random = new Random(seed);
+		return command -> {
+			double draw;
+			synchronized (random) {
+				draw = random.nextDouble();
+			}
+			if(command == CONNECT) {
+				return draw < refuseRate ? Fault.ERROR : Fault.NONE;
+			}else if(draw < errorRate) {
+				return Fault.ERROR;
+			}else if(draw < errorRate + disconnectRate) {
+				return Fault.DISCONNECT;
+			}
+			return Fault.NONE;
+		};
+	}
+
+	public FakeRserve() throws IOException {
+		serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+		connections.execute(this::acceptConnections);
+	}
+
+	public int getPort() {
+		return serverSocket.getLocalPort();
+	}
+
+	/** Url of the server for {@link RServerInstance#getUrl()} */
+	public String getUrl() {
+		return "R://127.0.0.1:" + getPort();
+	}
+
+	/** Answers eval and voidEval requests, an exception is sent back as an R error
+	 */
+	public void setEvaluator(Function<String, REXP> evaluator) {
+		this.evaluator = evaluator;
+	}
+
+	/** Files created on the server by name, can be modified to make them available for reading
+	 */
+	public Map<String, byte[]> getFiles() {
+		return files;
+	}
+
+	public Map<String, REXP> getVariables() {
+		return variables;
+	}
+
+	/** Time each expression takes to be evaluated, the connection is blocked meanwhile as in Rserve
+	 */
+	public void setEvalLatency(Function<String, Duration> evalLatency) {
+		this.evalLatency = evalLatency;
+	}
+
+	public void setEvalLatency(Duration evalLatency) {
+		setEvalLatency(expression -> evalLatency);
+	}
+
+	/** Requires plain text login with the credentials, null to accept connections without login
+	 */
+	public void setCredentials(String user, String password) {
+		this.user = user;
+		this.password = password;
+	}
+
+	public void setFaultInjector(FaultInjector faultInjector) {
+		this.faultInjector = faultInjector;
+	}
+
+	/** Connections currently open */
+	public int getOpenConnections() {
+		return openConnections.get();
+	}
+
+	public long getAcceptedConnections() {
+		return acceptedConnections.get();
+	}
+
+	/** Commands received, including the ones failed by the {@link FaultInjector} */
+	public long getCommands() {
+		return commands.get();
+	}
+
+	public long getInjectedFaults() {
+		return injectedFaults.get();
+	}
+
+	@Override
+	public void close() throws IOException {
+		serverSocket.close();
+		connections.shutdownNow();
+	}
+
+	private void acceptConnections() {
+		while(!serverSocket.isClosed()) {
+			try {
+				Socket socket = serverSocket.accept();
+				socket.setTcpNoDelay(true);
+				connections.execute(() -> serve(socket));
+			} catch (IOException e) {
+				if(!serverSocket.isClosed()) {
+					log.warn("Error accepting connection", e);
+				}
+			}
+		}
+	}
+
+	private void serve(Socket socket) {
+		acceptedConnections.incrementAndGet();
+		openConnections.incrementAndGet();
+		try(socket) {
+			if(faultInjector.inject(CONNECT) != Fault.NONE) {
+				injectedFaults.incrementAndGet();
+				return;
+			}
+			var in = new DataInputStream(socket.getInputStream());
+			var out = socket.getOutputStream();
+			out.write(handshake().getBytes(StandardCharsets.US_ASCII));
+			out.flush();
+			var session = new Session();
+			session.authenticated = user == null;
+			while(true) {
+				byte[] header = new byte[16];
+				in.readFully(header);
+				ByteBuffer hdr = ByteBuffer.wrap(header).order(ByteOrder.LITTLE_ENDIAN);
+				int command = hdr.getInt(0);
+				long length = Integer.toUnsignedLong(hdr.getInt(4)) | (Integer.toUnsignedLong(hdr.getInt(12)) << 32);
+				byte[] payload = new byte[Math.toIntExact(length)];
+				in.readFully(payload);
+				commands.incrementAndGet();
+				Fault fault = faultInjector.inject(command);
+				if(fault != Fault.NONE) {
+					injectedFaults.incrementAndGet();
+					if(fault == Fault.DISCONNECT) {
+						return;
+					}
+					reply(out, RESP_ERR | ERR_IO << 24, null);
+					continue;
+				}
+				if(!session.authenticated && command != CMD_LOGIN) {
+					reply(out, RESP_ERR | ERR_AUTH_FAILED << 24, null);
+					continue;
+				}
+				if(!handle(command, ByteBuffer.wrap(payload).order(ByteOrder.LITTLE_ENDIAN), session, out)) {
+					return;
+				}
+			}
+		} catch (EOFException | SocketException e) {
+			log.trace("Connection closed: {}", e.toString());
+		} catch (IOException | RuntimeException e) {
+			log.warn("Error serving connection", e);
+		} finally {
+			openConnections.decrementAndGet();
+		}
+	}
+
+	/** Identification sent on connection: signature, protocol version and transport, plus plain text
+	 * authentication if there are credentials */
+	String handshake() {
+		return "Rsrv0103QAP1\r\n\r\n" + (user != null ? "ARpt----------" : "--------------") + "\r\n";
+	}
+
+	/** State of a connection */
+	static class Session {
+		boolean authenticated;
+		byte[] reading;
+		int readPosition;
+		String writingName;
+		ByteArrayOutputStream writing;
+	}
+
+	/** Answers the command, false to close the connection
+	 */
+	boolean handle(int command, ByteBuffer payload, Session session, OutputStream out) throws IOException {
+		switch(command) {
+		case CMD_LOGIN:
+			String[] credentials = readString(payload).split("\n", 2);
+			session.authenticated = user == null || (credentials.length == 2 && user.equals(credentials[0]) && String.valueOf(password).equals(credentials[1]));
+			reply(out, session.authenticated ? RESP_OK : RESP_ERR | ERR_AUTH_FAILED << 24, null);
+			return session.authenticated;
+		case CMD_EVAL:
+		case CMD_VOID_EVAL:
+			String expression = readString(payload).trim();
+			REXP result;
+			try {
+				sleep(evalLatency.apply(expression));
+				result = evaluator.apply(expression);
+			} catch (RuntimeException e) {
+				reply(out, RESP_ERR | ERR_EVAL << 24, null);
+				return true;
+			}
+			reply(out, RESP_OK, command == CMD_EVAL ? encode(result) : null);
+			return true;
+		case CMD_SET_SEXP:
+			String symbol = readString(payload);
+			variables.put(symbol, readSexp(payload));
+			reply(out, RESP_OK, null);
+			return true;
+		case CMD_CREATE_FILE:
+			session.writingName = readString(payload);
+			session.writing = new ByteArrayOutputStream();
+			reply(out, RESP_OK, null);
+			return true;
+		case CMD_WRITE_FILE:
+			if(session.writing == null) {
+				reply(out, RESP_ERR | ERR_NOT_OPEN << 24, null);
+				return true;
+			}
+			int writeLength = readHeaderLength(payload);
+			session.writing.write(payload.array(), payload.position(), writeLength);
+			reply(out, RESP_OK, null);
+			return true;
+		case CMD_OPEN_FILE:
+			byte[] content = files.get(readString(payload));
+			if(content == null) {
+				reply(out, RESP_ERR | ERR_IO << 24, null);
+				return true;
+			}
+			session.reading = content;
+			session.readPosition = 0;
+			reply(out, RESP_OK, null);
+			return true;
+		case CMD_READ_FILE:
+			if(session.reading == null) {
+				reply(out, RESP_ERR | ERR_NOT_OPEN << 24, null);
+				return true;
+			}
+			readHeaderLength(payload);
+			int requested = payload.getInt();
+			int available = Math.min(requested, session.reading.length - session.readPosition);
+			byte[] chunk = new byte[available];
+			System.arraycopy(session.reading, session.readPosition, chunk, 0, available);
+			session.readPosition += available;
+			reply(out, RESP_OK, available > 0 ? chunk : null);
+			return true;
+		case CMD_CLOSE_FILE:
+			if(session.writing != null) {
+				files.put(session.writingName, session.writing.toByteArray());
+			}
+			session.writing = null;
+			session.reading = null;
+			reply(out, RESP_OK, null);
+			return true;
+		case CMD_REMOVE_FILE:
+			files.remove(readString(payload));
+			reply(out, RESP_OK, null);
+			return true;
+		case CMD_SHUTDOWN:
+			reply(out, RESP_OK, null);
+			return false;
+		default:
+			reply(out, RESP_ERR | ERR_INV_CMD << 24, null);
+			return true;
+		}
+	}
+
+	private static void sleep(Duration latency) {
+		if(latency.isZero()) {
+			return;
+		}
+		try {
+			Thread.sleep(latency.toMillis(), latency.toNanosPart() % 1_000_000);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/** Length of the next parameter, leaving the buffer at its content */
+	static int readHeaderLength(ByteBuffer payload) {
+		int header = payload.getInt();
+		long length = header >>> 8;
+		if((header & DT_LARGE) != 0) {
+			length |= Integer.toUnsignedLong(payload.getInt()) << 24;
+		}
+		return Math.toIntExact(length);
+	}
+
+	static String readString(ByteBuffer payload) {
+		int length = readHeaderLength(payload);
+		int end = payload.position();
+		while(end < payload.position() + length && payload.get(end) != 0) {
+			end++;
+		}
+		String value = new String(payload.array(), payload.position(), end - payload.position(), StandardCharsets.UTF_8);
+		payload.position(payload.position() + length);
+		return value;
+	}
+
+	static REXP readSexp(ByteBuffer payload) {
+		int length = readHeaderLength(payload);
+		try {
+			var factory = new REXPFactory();
+			factory.parseREXP(payload.array(), payload.position());
+			payload.position(payload.position() + length);
+			return factory.getREXP();
+		} catch (REXPMismatchException e) {
+			throw new IllegalArgumentException(e);
+		}
+	}
+
+	/** Eval reply: the expression as a SEXP parameter */
+	static byte[] encode(REXP value) {
+		try {
+			var factory = new REXPFactory(value != null ? value : new REXPNull());
+			int length = factory.getBinaryLength();
+			boolean large = length > 0xFFFFF0;
+			byte[] content = new byte[length + (large ? 8 : 4)];
+			ByteBuffer.wrap(content).order(ByteOrder.LITTLE_ENDIAN).putInt(DT_SEXP | (large ? DT_LARGE : 0) | (length << 8));
+			if(large) {
+				ByteBuffer.wrap(content, 4, 4).order(ByteOrder.LITTLE_ENDIAN).putInt(length >>> 24);
+			}
+			factory.getBinaryRepresentation(content, large ? 8 : 4);
+			return content;
+		} catch (REXPMismatchException e) {
+			throw new IllegalArgumentException(e);
+		}
+	}
+
+	static void reply(OutputStream out, int status, byte[] content) throws IOException {
+		int length = content != null ? content.length : 0;
+		byte[] message = new byte[16 + length];
+		ByteBuffer.wrap(message).order(ByteOrder.LITTLE_ENDIAN).putInt(status).putInt(length);
+		if(content != null) {
+			System.arraycopy(content, 0, message, 16, length);
+		}
+		out.write(message);
+		out.flush();
+	}
+
+}
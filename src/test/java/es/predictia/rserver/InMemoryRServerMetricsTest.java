@@ -0,0 +1,50 @@
+package es.predictia.rserver;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class InMemoryRServerMetricsTest {
+
+	@Test
+	public void testTimers() {
+		var metrics = new InMemoryRServerMetrics();
+		var instance = RServerInstance.builder().build();
+		for(long nanos = 1; nanos <= 100; nanos++) {
+			metrics.recordTime(RServerMetrics.EVAL, instance, nanos);
+		}
+		var timer = metrics.getTimer(RServerMetrics.EVAL, instance).get();
+		Assert.assertEquals(100, timer.getCount());
+		Assert.assertEquals(5050, timer.getTotalNanos());
+		Assert.assertEquals(100, timer.getMaxNanos());
+		Assert.assertEquals(63, timer.getPercentileNanos(0.5));
+		Assert.assertEquals(100, timer.getPercentileNanos(0.99));
+		Assert.assertFalse(metrics.getTimer(RServerMetrics.EVAL, null).isPresent());
+	}
+	
+	@Test
+	public void testCountersAndGauges() {
+		var metrics = new InMemoryRServerMetrics();
+		var instance = RServerInstance.builder().build();
+		metrics.increment(RServerMetrics.BYTES_SENT, instance, 10);
+		metrics.increment(RServerMetrics.BYTES_SENT, instance, 5);
+		Assert.assertEquals(15, metrics.getCounter(RServerMetrics.BYTES_SENT, instance));
+		Assert.assertEquals(0, metrics.getCounter(RServerMetrics.BYTES_RECEIVED, instance));
+		var used = new AtomicInteger(2);
+		metrics.gauge(RServerMetrics.RESOURCES_USED, instance, used::get);
+		used.set(3);
+		Assert.assertEquals(3d, metrics.getGauge(RServerMetrics.RESOURCES_USED, instance).getAsDouble(), 0d);
+	}
+	
+	@Test
+	public void testFactoryGauges() {
+		var metrics = new InMemoryRServerMetrics();
+		var factory = new RSessionFactory();
+		factory.setMetrics(metrics);
+		var instance = RServerInstance.builder().build();
+		Assert.assertEquals(0d, metrics.getGauge(RServerMetrics.RESOURCES_USED, instance).getAsDouble(), 0d);
+		Assert.assertEquals(0d, metrics.getGauge(RServerMetrics.QUEUE_SIZE, null).getAsDouble(), 0d);
+	}
+
+}
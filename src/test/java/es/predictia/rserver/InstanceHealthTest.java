@@ -0,0 +1,91 @@
+package es.predictia.rserver;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class InstanceHealthTest {
+
+	private FakeRserve healthy, failing;
+	
+	private RServerInstance healthyInstance, failingInstance;
+	
+	private RSessionFactory factory;
+	
+	@Before
+	public void setUp() throws Exception {
+		healthy = new FakeRserve();
+		failing = new FakeRserve();
+		failing.setFaultInjector(command -> command == FakeRserve.CONNECT ? FakeRserve.Fault.ERROR : FakeRserve.Fault.NONE);
+		healthyInstance = RServerInstance.builder().url(healthy.getUrl()).resources(2).build();
+		failingInstance = RServerInstance.builder().url(failing.getUrl()).resources(2).build();
+		factory = new RSessionFactory();
+		factory.setHealthPolicy(InstanceHealthPolicy.builder()
+			.failureThreshold(2)
+			.initialBackoff(50l)
+			.maxBackoff(200l)
+			.backoffUnit(TimeUnit.MILLISECONDS)
+			.build());
+		// first fit tries the failing instance first
+		factory.setAvailableInstances(List.of(failingInstance, healthyInstance));
+	}
+	
+	@After
+	public void tearDown() throws Exception {
+		healthy.close();
+		failing.close();
+	}
+	
+	@Test
+	public void testRetryAndCircuitBreaking() throws Exception {
+		var workers = runWorkers(10);
+		for(SimpleRWorker worker : workers) {
+			Assert.assertFalse(worker.anyErrors());
+		}
+		var health = factory.getInstanceHealth(failingInstance).get();
+		Assert.assertFalse(health.isAvailable());
+		// sessions started before the circuit opened may fail on it too
+		Assert.assertTrue(health.getTotalFailures() >= 2);
+		Assert.assertTrue(factory.getInstanceHealth(healthyInstance).get().isAvailable());
+	}
+	
+	@Test
+	public void testProbeClosesCircuit() throws Exception {
+		runWorkers(10);
+		Assert.assertFalse(factory.getInstanceHealth(failingInstance).get().isAvailable());
+		failing.setFaultInjector(command -> FakeRserve.Fault.NONE);
+		long deadline = System.currentTimeMillis() + 5000;
+		while(!factory.getInstanceHealth(failingInstance).get().isAvailable() && System.currentTimeMillis() < deadline) {
+			Thread.sleep(20);
+		}
+		Assert.assertTrue(factory.getInstanceHealth(failingInstance).get().isAvailable());
+		long accepted = failing.getAcceptedConnections();
+		runWorkers(1);
+		Assert.assertEquals(accepted + 1, failing.getAcceptedConnections());
+	}
+	
+	@Test
+	public void testFailsWithoutHealthyInstances() throws Exception {
+		factory.setAvailableInstances(List.of(failingInstance));
+		var worker = runWorkers(1).get(0);
+		Assert.assertTrue(worker.anyErrors());
+		Assert.assertFalse(worker.isStarted());
+	}
+	
+	private List<SimpleRWorker> runWorkers(int sessions) throws Exception {
+		var workers = new ArrayList<SimpleRWorker>();
+		for(int i = 0; i < sessions; i++) {
+			var worker = new SimpleRWorker(session -> session.eval("sessionInfo()"));
+			workers.add(worker);
+			RWorkers.runWithinRsession(worker, factory);
+		}
+		RWorkers.wait(30, TimeUnit.SECONDS, workers.toArray(new SimpleRWorker[]{}));
+		return workers;
+	}
+
+}
@@ -0,0 +1,105 @@
+package es.predictia.rserver;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class InstanceMembershipTest {
+
+	private FakeRserve first, second;
+	
+	private RServerInstance firstInstance, secondInstance;
+	
+	private RSessionFactory factory;
+	
+	private InMemoryRServerMetrics metrics;
+	
+	@Before
+	public void setUp() throws Exception {
+		first = new FakeRserve();
+		second = new FakeRserve();
+		first.setEvalLatency(Duration.ofMillis(300));
+		firstInstance = RServerInstance.builder().url(first.getUrl()).resources(2).build();
+		secondInstance = RServerInstance.builder().url(second.getUrl()).resources(2).build();
+		factory = new RSessionFactory();
+		metrics = new InMemoryRServerMetrics();
+		factory.setMetrics(metrics);
+		factory.setAvailableInstances(List.of(firstInstance));
+	}
+	
+	@After
+	public void tearDown() throws Exception {
+		first.close();
+		second.close();
+	}
+	
+	@Test
+	public void testRemoveWhileRunning() throws Exception {
+		var started = new CountDownLatch(2);
+		var running = List.of(worker(started), worker(started));
+		for(SimpleRWorker worker : running) {
+			RWorkers.runWithinRsession(worker, factory);
+		}
+		Assert.assertTrue(started.await(10, TimeUnit.SECONDS));
+		var removed = factory.removeInstance(firstInstance);
+		factory.addInstance(secondInstance);
+		Assert.assertFalse(removed.isDone());
+		var next = worker();
+		next.runAndWait(factory, RSessionRequest.createDefaultRequest());
+		Assert.assertEquals(1, second.getAcceptedConnections());
+		Assert.assertEquals(2, first.getAcceptedConnections());
+		removed.get(10, TimeUnit.SECONDS);
+		for(SimpleRWorker worker : running) {
+			Assert.assertTrue(worker.isFinished());
+			Assert.assertFalse(worker.anyErrors());
+		}
+		Assert.assertEquals(List.of(secondInstance), factory.getAvailableInstances());
+	}
+	
+	@Test
+	public void testDrainAndResume() throws Exception {
+		factory.drainInstance(firstInstance).get(1, TimeUnit.SECONDS);
+		var waiting = worker();
+		RWorkers.runWithinRsession(waiting, factory);
+		assertQueued(waiting);
+		factory.resumeInstance(firstInstance);
+		waiting.getCompletion().get(10, TimeUnit.SECONDS);
+		Assert.assertFalse(waiting.anyErrors());
+		Assert.assertEquals(List.of(firstInstance), factory.getAvailableInstances());
+	}
+	
+	@Test
+	public void testCapacityChange() throws Exception {
+		factory.setInstanceCapacity(firstInstance, 0);
+		var waiting = worker();
+		RWorkers.runWithinRsession(waiting, factory);
+		assertQueued(waiting);
+		factory.setInstanceCapacity(firstInstance, 1);
+		waiting.getCompletion().get(10, TimeUnit.SECONDS);
+		Assert.assertFalse(waiting.anyErrors());
+	}
+	
+	/** Requests are dispatched as they are made, so one still in the queue right after it is made has no room */
+	private void assertQueued(SimpleRWorker worker) {
+		Assert.assertEquals(1d, metrics.getGauge(RServerMetrics.QUEUE_SIZE, null).getAsDouble(), 0d);
+		Assert.assertFalse(worker.isStarted());
+	}
+	
+	private static SimpleRWorker worker() {
+		return new SimpleRWorker(session -> session.eval("sessionInfo()"));
+	}
+	
+	private static SimpleRWorker worker(CountDownLatch started) {
+		return new SimpleRWorker(session -> {
+			started.countDown();
+			session.eval("sessionInfo()");
+		});
+	}
+
+}
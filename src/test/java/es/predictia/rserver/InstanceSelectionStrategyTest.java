@@ -0,0 +1,90 @@
+package es.predictia.rserver;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class InstanceSelectionStrategyTest {
+
+	@Test
+	public void testFirstFit() {
+		var candidates = candidates();
+		Assert.assertSame(candidates.get(0), InstanceSelectionStrategy.firstFit().select(candidates, RSessionRequest.createDefaultRequest()).get());
+	}
+	
+	@Test
+	public void testLeastLoaded() {
+		var candidates = candidates();
+		Assert.assertSame(candidates.get(1), InstanceSelectionStrategy.leastLoaded().select(candidates, RSessionRequest.createDefaultRequest()).get());
+	}
+	
+	@Test
+	public void testRoundRobin() {
+		var candidates = candidates();
+		var strategy = InstanceSelectionStrategy.roundRobin();
+		for(int i = 0; i < 2 * candidates.size(); i++) {
+			Assert.assertSame(candidates.get(i % candidates.size()), strategy.select(candidates, RSessionRequest.createDefaultRequest()).get());
+		}
+	}
+	
+	@Test
+	public void testWeighted() {
+		var candidates = candidates();
+		var strategy = InstanceSelectionStrategy.weighted();
+		Map<InstanceLoad, Integer> selections = new HashMap<>();
+		for(int i = 0; i < 10000; i++) {
+			selections.merge(strategy.select(candidates, RSessionRequest.createDefaultRequest()).get(), 1, Integer::sum);
+		}
+		Assert.assertTrue(selections.get(candidates.get(1)) > selections.get(candidates.get(0)));
+		Assert.assertTrue(selections.get(candidates.get(1)) > selections.get(candidates.get(2)));
+	}
+	
+	@Test
+	public void testPowerOfTwoChoicesAvoidsMostLoaded() {
+		var candidates = candidates();
+		var strategy = InstanceSelectionStrategy.powerOfTwoChoices();
+		for(int i = 0; i < 100; i++) {
+			Assert.assertNotSame(candidates.get(0), strategy.select(candidates, RSessionRequest.createDefaultRequest()).get());
+		}
+		Assert.assertFalse(strategy.select(Arrays.asList(), RSessionRequest.createDefaultRequest()).isPresent());
+	}
+	
+	@Test
+	public void testLoadWithoutCapacity() {
+		var resources = instanceResources("R://host1", 2, 1);
+		resources.setCapacity(0);
+		Assert.assertEquals(1d, resources.getLoad(), 0d);
+		var other = candidates().get(1);
+		Assert.assertSame(other, InstanceSelectionStrategy.leastLoaded().select(List.of(resources, other), RSessionRequest.createDefaultRequest()).get());
+	}
+	
+	@Test
+	public void testWeightFollowsCapacity() {
+		var candidates = candidates();
+		((InstanceResources) candidates.get(1)).setCapacity(0);
+		Assert.assertEquals(0, candidates.get(1).getEffectiveWeight());
+		var strategy = InstanceSelectionStrategy.weighted();
+		for(int i = 0; i < 100; i++) {
+			Assert.assertNotSame(candidates.get(1), strategy.select(candidates, RSessionRequest.createDefaultRequest()).get());
+		}
+	}
+	
+	/** Loads of 3/4, 1/8 and 1/2 with weights 4, 8 and 2 */
+	private static List<InstanceLoad> candidates() {
+		return Arrays.asList(instanceResources("R://host1", 4, 3), instanceResources("R://host2", 8, 1), instanceResources("R://host3", 2, 1));
+	}
+	
+	private static InstanceResources instanceResources(String url, int resourceNumber, int used) {
+		var resources = new InstanceResources(RServerInstance.builder()
+			.url(url)
+			.resources(resourceNumber)
+			.build());
+		Assert.assertTrue(resources.tryReserve(used));
+		return resources;
+	}
+	
+}
@@ -0,0 +1,123 @@
+package es.predictia.rserver;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.rosuda.REngine.REXPNull;
+import org.rosuda.REngine.REXPString;
+
+public class RConnectionPoolTest {
+	
+	private FakeRserve server;
+	
+	private final List<String> expressions = new CopyOnWriteArrayList<>();
+	
+	@Before
+	public void setUp() throws Exception {
+		server = new FakeRserve();
+		server.setEvaluator(expression -> {
+			expressions.add(expression);
+			return expression.equals("getwd()") ? new REXPString("/tmp/rserver") : new REXPNull();
+		});
+	}
+	
+	@After
+	public void tearDown() throws Exception {
+		server.close();
+	}
+	
+	@Test
+	public void testReuseCleansWorkspace() throws Exception {
+		try(var pool = new RConnectionPool(new InstanceResources(instance(2).build()), Runnable::run)) {
+			var borrowed = pool.borrow(null);
+			pool.giveBack(borrowed);
+			Assert.assertTrue(expressions.stream().anyMatch(expression -> expression.startsWith("setwd('/tmp/rserver'); rm(list = ls(")));
+			Assert.assertEquals(1, pool.getIdleConnections());
+			Assert.assertSame(borrowed, pool.borrow(null));
+			Assert.assertEquals(1l, server.getAcceptedConnections());
+		}
+	}
+	
+	@Test
+	public void testWorkingDirectoryIsQuoted() throws Exception {
+		server.setEvaluator(expression -> {
+			expressions.add(expression);
+			return expression.equals("getwd()") ? new REXPString("/tmp/r'server") : new REXPNull();
+		});
+		try(var pool = new RConnectionPool(new InstanceResources(instance(2).build()), Runnable::run)) {
+			pool.giveBack(pool.borrow(null));
+			Assert.assertTrue(expressions.stream().anyMatch(expression -> expression.startsWith("setwd('/tmp/r\\'server'); rm(list = ls(")));
+		}
+	}
+	
+	@Test
+	public void testExpiredConnectionsAreClosed() throws Exception {
+		try(var pool = new RConnectionPool(new InstanceResources(instance(2).maxConnectionLifetime(0l).build()), Runnable::run)) {
+			var borrowed = pool.borrow(null);
+			pool.giveBack(borrowed);
+			Assert.assertEquals(0, pool.getIdleConnections());
+			Assert.assertEquals(0, pool.getLiveConnections());
+			Assert.assertNotSame(borrowed, pool.borrow(null));
+			Assert.assertEquals(2l, server.getAcceptedConnections());
+		}
+	}
+	
+	@Test
+	public void testIdleConnectionsAreEvicted() throws Exception {
+		try(var pool = new RConnectionPool(new InstanceResources(instance(2).maxIdleTime(0l).maxIdleTimeUnit(TimeUnit.MILLISECONDS).build()), Runnable::run)) {
+			pool.giveBack(pool.borrow(null));
+			Assert.assertEquals(1, pool.getIdleConnections());
+			pool.evict();
+			Assert.assertEquals(0, pool.getIdleConnections());
+			Assert.assertEquals(0, pool.getLiveConnections());
+		}
+	}
+	
+	@Test
+	public void testBorrowedConnectionsCountTowardsResources() throws Exception {
+		var profile = RWarmupProfile.builder().name("warm").warmSessions(2).build();
+		try(var pool = new RConnectionPool(new InstanceResources(instance(2).warmupProfile(profile).build()), Runnable::run)) {
+			pool.replenish();
+			Assert.assertEquals(2, pool.getIdleConnections());
+			var first = pool.borrow(profile);
+			var second = pool.borrow(profile);
+			Assert.assertEquals(0, pool.getIdleConnections());
+			Assert.assertEquals(2, pool.getLiveConnections());
+			var extra = pool.borrow(null);
+			pool.giveBack(extra);
+			Assert.assertEquals(0, pool.getIdleConnections());
+			pool.giveBack(first);
+			pool.giveBack(second);
+			Assert.assertEquals(2, pool.getIdleConnections());
+			Assert.assertEquals(2, pool.getLiveConnections());
+			Assert.assertEquals(3l, server.getAcceptedConnections());
+		}
+	}
+	
+	@Test
+	public void testPoolFollowsCapacity() throws Exception {
+		var resources = new InstanceResources(instance(1).build());
+		try(var pool = new RConnectionPool(resources, Runnable::run)) {
+			resources.setCapacity(2);
+			var first = pool.borrow(null);
+			var second = pool.borrow(null);
+			pool.giveBack(first);
+			pool.giveBack(second);
+			Assert.assertEquals(2, pool.getIdleConnections());
+			resources.setCapacity(1);
+			pool.evict();
+			Assert.assertEquals(1, pool.getIdleConnections());
+			Assert.assertEquals(1, pool.getLiveConnections());
+		}
+	}
+	
+	private RServerInstance.RServerInstanceBuilder instance(int resources) {
+		return RServerInstance.builder().url(server.getUrl()).resources(resources).pooledConnections(true);
+	}
+
+}
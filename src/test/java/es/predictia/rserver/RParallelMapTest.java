@@ -0,0 +1,100 @@
+package es.predictia.rserver;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.rosuda.REngine.REXPDouble;
+
+public class RParallelMapTest {
+
+	private FakeRserve first, second;
+	
+	private RSessionFactory factory;
+	
+	@Before
+	public void setUp() throws Exception {
+		first = new FakeRserve();
+		second = new FakeRserve();
+		for(FakeRserve server : List.of(first, second)) {
+			server.setEvalLatency(Duration.ofMillis(20));
+			server.setEvaluator(expression -> {
+				if(expression.equals("stop()")) {
+					throw new IllegalStateException("Failed chunk");
+				}
+				return new REXPDouble(expression.length());
+			});
+		}
+		factory = new RSessionFactory();
+		factory.setAvailableInstances(List.of(
+			RServerInstance.builder().url(first.getUrl()).resources(2).build(),
+			RServerInstance.builder().url(second.getUrl()).resources(2).build()));
+	}
+	
+	@After
+	public void tearDown() throws Exception {
+		first.close();
+		second.close();
+	}
+	
+	@Test
+	public void testInOrderResults() throws Exception {
+		var inputs = IntStream.range(0, 1000).boxed().collect(Collectors.toList());
+		var map = factory.parallelMap(inputs, (session, chunk) -> {
+			session.eval("x <- 1");
+			return chunk.stream().map(i -> i * 2).collect(Collectors.toList());
+		});
+		var doubled = new ArrayList<Integer>();
+		int offset = 0, lastSize = Integer.MAX_VALUE, chunks = 0;
+		for(var it = map.inOrder(); it.hasNext(); chunks++) {
+			var chunk = it.next();
+			Assert.assertFalse(chunk.isFailed());
+			Assert.assertEquals(offset, chunk.getOffset());
+			Assert.assertTrue(chunk.getInputs().size() <= lastSize);
+			offset += chunk.getInputs().size();
+			lastSize = chunk.getInputs().size();
+			doubled.addAll(chunk.getResult());
+		}
+		Assert.assertEquals(1000, offset);
+		Assert.assertTrue(chunks > 4);
+		Assert.assertEquals(inputs.stream().map(i -> i * 2).collect(Collectors.toList()), doubled);
+		Assert.assertEquals(chunks, map.getResults().get(1, TimeUnit.SECONDS).size());
+		Assert.assertTrue(first.getAcceptedConnections() > 0 && second.getAcceptedConnections() > 0);
+	}
+	
+	@Test
+	public void testCancelOnFailure() throws Exception {
+		var inputs = IntStream.range(0, 1000).boxed().collect(Collectors.toList());
+		var map = factory.parallelMap(inputs, (session, chunk) -> {
+			session.eval(chunk.contains(100) ? "stop()" : "x <- 1");
+			return chunk.size();
+		}, RParallelMapOptions.builder().maxChunkSize(10).cancelOnFailure(true).build());
+		try {
+			map.getResults().get(10, TimeUnit.SECONDS);
+			Assert.fail("Failed chunk expected");
+		} catch (ExecutionException e) {
+			Assert.assertTrue(e.getCause().getMessage().contains("eval failed"));
+		}
+		int inputsRun = 0;
+		for(var it = map.asCompleted(); it.hasNext();) {
+			var chunk = it.next();
+			inputsRun += chunk.isFailed() ? 0 : chunk.getResult();
+		}
+		Assert.assertTrue(map.isDone());
+		Assert.assertTrue(inputsRun < 1000);
+		var sessionRequest = RSessionRequest.createDefaultRequest();
+		for(int i = 0; i < 100 && factory.getFreeSessions(sessionRequest) < 4; i++) {
+			Thread.sleep(20);
+		}
+		Assert.assertEquals(4, factory.getFreeSessions(sessionRequest));
+	}
+	
+}
@@ -0,0 +1,106 @@
+package es.predictia.rserver;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.rosuda.REngine.REXPNull;
+
+public class RScriptResultCacheTest {
+
+	private FakeRserve server;
+	
+	private RSessionFactory factory;
+	
+	private Path directory;
+	
+	private File auxFile, resultFile;
+	
+	private final AtomicInteger runs = new AtomicInteger();
+	
+	@Before
+	public void setUp() throws Exception {
+		server = new FakeRserve();
+		server.setEvaluator(expression -> {
+			if(expression.contains("source(")) {
+				server.getFiles().put("out.txt", ("run " + runs.incrementAndGet()).getBytes(StandardCharsets.UTF_8));
+			}
+			return new REXPNull();
+		});
+		directory = Files.createTempDirectory("results-");
+		auxFile = File.createTempFile("aux-", ".csv");
+		resultFile = new File(directory.toFile(), "out.txt");
+		Files.writeString(auxFile.toPath(), "a,b\n1,2\n");
+		factory = new RSessionFactory();
+		factory.setAvailableInstances(List.of(RServerInstance.builder().url(server.getUrl()).build()));
+		factory.setResultCache(new RScriptResultCache(directory.resolve("cache"), 1024));
+	}
+	
+	@After
+	public void tearDown() throws Exception {
+		server.close();
+		factory.getResultCache().get().clear();
+		Files.deleteIfExists(resultFile.toPath());
+		Files.deleteIfExists(directory.resolve("cache"));
+		Files.deleteIfExists(directory);
+		auxFile.delete();
+	}
+	
+	@Test
+	public void testHitWithoutSession() throws Exception {
+		Assert.assertEquals("run 1", run(script().build()));
+		long connections = server.getAcceptedConnections();
+		Assert.assertEquals("run 1", run(script().build()));
+		Assert.assertEquals(connections, server.getAcceptedConnections());
+		Assert.assertEquals(1, factory.getResultCache().get().getHits());
+		Files.writeString(auxFile.toPath(), "a,b\n3,4\n");
+		Assert.assertEquals("run 2", run(script().build()));
+		Assert.assertEquals("run 3", run(script().memoizeResults(false).build()));
+	}
+	
+	@Test
+	public void testTtlAndEviction() throws Exception {
+		Assert.assertEquals("run 1", run(script().resultTtlAndUnit(0l, TimeUnit.MILLISECONDS).build()));
+		Thread.sleep(5);
+		Assert.assertEquals("run 2", run(script().resultTtlAndUnit(0l, TimeUnit.MILLISECONDS).build()));
+		var cache = factory.getResultCache().get();
+		for(int i = 0; i < 100; i++) {
+			run(script().line("x <- " + i).build());
+		}
+		Assert.assertTrue(cache.getSize() <= cache.getMaxBytes());
+		Assert.assertEquals("run 102", run(script().line("x <- 99").build()));
+	}
+	
+	@Test
+	public void testKeyFollowsAuxFileContent() throws Exception {
+		var cache = factory.getResultCache().get();
+		String key = cache.key(script().build());
+		var lastModified = Files.getLastModifiedTime(auxFile.toPath());
+		// same size and modification time, different content
+		Files.writeString(auxFile.toPath(), "a,b\n5,6\n");
+		Files.setLastModifiedTime(auxFile.toPath(), lastModified);
+		Assert.assertNotEquals(key, cache.key(script().build()));
+	}
+	
+	private RScript.RScriptBuilder script() {
+		return RScript.builder()
+			.line("d <- read.csv('" + auxFile.getName() + "')")
+			.line("writeLines('done', 'out.txt')")
+			.auxFile(auxFile)
+			.resultFile(resultFile);
+	}
+	
+	private String run(RScript script) throws Exception {
+		script.toWorker().runAndWait(factory, RSessionRequest.createDefaultRequest());
+		return Files.readString(resultFile.toPath());
+	}
+	
+}
@@ -0,0 +1,38 @@
+package es.predictia.rserver;
+
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.text.StringSubstitutor;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class RScriptTemplateTest {
+
+	@Test
+	public void testRenderMatchesSubstitutor() {
+		var lines = List.of(
+			"x <- ${x}",
+			"y <- '${name}_${suffix:-out}.csv'",
+			"z <- '$${escaped}' # ${missing}",
+			"paste0(${x}${x}, '${unclosed'",
+			"plain line",
+			""
+		);
+		var values = Map.of("x", "42", "name", "data");
+		var template = RScriptTemplate.compile(lines);
+		var substitutor = new StringSubstitutor(values);
+		var rendered = template.render(values);
+		Assert.assertEquals(lines.size(), rendered.size());
+		for(int i = 0; i < lines.size(); i++) {
+			Assert.assertEquals(substitutor.replace(lines.get(i)), rendered.get(i));
+		}
+	}
+	
+	@Test
+	public void testValuesAreNotSubstitutedAgain() {
+		var template = RScriptTemplate.compile(List.of("x <- '${x}'"));
+		Assert.assertEquals(List.of("x <- '${y}'"), template.render(Map.of("x", "${y}", "y", "1")));
+	}
+
+}
@@ -0,0 +1,129 @@
+package es.predictia.rserver;
+
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.rosuda.REngine.REXPDouble;
+
+import lombok.extern.slf4j.Slf4j;
+
+/** Many concurrent sessions against {@link FakeRserve} instances, size it with the <code>rserver.soak.sessions</code>
+ * system property
+ */
+@Slf4j
+public class RSessionFactorySoakTest {
+
+	private static final int SESSIONS = Integer.getInteger("rserver.soak.sessions", 2000);
+	
+	private static final int RESOURCES = 32;
+	
+	private final List<FakeRserve> servers = new ArrayList<>();
+	
+	private final InMemoryRServerMetrics metrics = new InMemoryRServerMetrics();
+	
+	private RSessionFactory factory;
+	
+	@Before
+	public void setUp() throws Exception {
+		var instances = new ArrayList<RServerInstance>();
+		for(int i = 0; i < 2; i++) {
+			var server = new FakeRserve();
+			server.setCredentials("rserve", "secret");
+			server.setEvalLatency(Duration.ofMillis(1));
+			server.setEvaluator(expression -> new REXPDouble(expression.length()));
+			servers.add(server);
+			instances.add(RServerInstance.builder()
+				.url("R://rserve:secret@127.0.0.1:" + server.getPort())
+				.resources(RESOURCES)
+				.build());
+		}
+		factory = new RSessionFactory();
+		factory.setMetrics(metrics);
+		factory.setAvailableInstances(instances);
+	}
+	
+	@After
+	public void tearDown() throws Exception {
+		for(FakeRserve server : servers) {
+			server.close();
+		}
+	}
+	
+	@Test
+	public void testConcurrentSessions() throws Exception {
+		var workers = runWorkers(SESSIONS);
+		for(SimpleRWorker worker : workers) {
+			Assert.assertFalse(worker.anyErrors());
+		}
+		assertResourcesReleased();
+		Assert.assertEquals(SESSIONS, metrics.getTimer(RServerMetrics.CONNECT, instance(0)).get().getCount()
+			+ metrics.getTimer(RServerMetrics.CONNECT, instance(1)).get().getCount());
+	}
+	
+	@Test
+	public void testSessionsWithFaults() throws Exception {
+		for(int i = 0; i < servers.size(); i++) {
+			servers.get(i).setFaultInjector(FakeRserve.randomFaults(i, 0.02, 0.01, 0.01));
+		}
+		var workers = runWorkers(SESSIONS / 2);
+		long failed = workers.stream().filter(SimpleRWorker::anyErrors).count();
+		log.info("{} of {} workers failed with injected faults", failed, workers.size());
+		Assert.assertTrue(failed > 0);
+		assertResourcesReleased();
+		servers.forEach(server -> server.setFaultInjector(command -> FakeRserve.Fault.NONE));
+		for(SimpleRWorker worker : runWorkers(2 * RESOURCES)) {
+			Assert.assertFalse(worker.anyErrors());
+		}
+	}
+	
+	private List<SimpleRWorker> runWorkers(int sessions) throws Exception {
+		var workers = new ArrayList<SimpleRWorker>();
+		for(int i = 0; i < sessions; i++) {
+			var name = "input" + i + ".csv";
+			var worker = new SimpleRWorker(session -> {
+				session.sendFile(ByteBuffer.wrap(name.getBytes()), name);
+				Assert.assertEquals(name.length() + 5, session.eval("f('" + name + "')").asDouble(), 0d);
+				session.removeFile(name);
+			});
+			workers.add(worker);
+			RWorkers.runWithinRsession(worker, factory, RSessionRequest.builder()
+				.maxQueueTimeAndUnit(5l, TimeUnit.MINUTES)
+				.build());
+		}
+		RWorkers.wait(5, TimeUnit.MINUTES, workers.toArray(new SimpleRWorker[]{}));
+		return workers;
+	}
+	
+	/** Workers complete right before their resources are released, so it waits a little for them */
+	private void assertResourcesReleased() throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 5000;
+		while(usedResources() > 0 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		Assert.assertEquals(0d, usedResources(), 0d);
+		Assert.assertEquals(0d, metrics.getGauge(RServerMetrics.QUEUE_SIZE, null).getAsDouble(), 0d);
+	}
+	
+	private double usedResources() {
+		double used = 0;
+		for(int i = 0; i < servers.size(); i++) {
+			used += metrics.getGauge(RServerMetrics.RESOURCES_USED, instance(i)).getAsDouble();
+		}
+		return used;
+	}
+	
+	private RServerInstance instance(int i) {
+		return RServerInstance.builder()
+			.url("R://rserve:secret@127.0.0.1:" + servers.get(i).getPort())
+			.resources(RESOURCES)
+			.build();
+	}
+
+}
@@ -0,0 +1,413 @@
+package es.predictia.rserver;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.file.Files;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+import java.util.stream.IntStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.rosuda.REngine.REXP;
+import org.rosuda.REngine.REXPDouble;
+import org.rosuda.REngine.REXPGenericVector;
+import org.rosuda.REngine.REXPNull;
+import org.rosuda.REngine.REXPString;
+import org.rosuda.REngine.REngineException;
+import org.rosuda.REngine.RList;
+
+public class RsessionTest {
+
+	private FakeRserve server;
+	
+	@Before
+	public void startServer() throws Exception {
+		server = new FakeRserve();
+	}
+	
+	@After
+	public void stopServer() throws Exception {
+		server.close();
+	}
+	
+	@Test
+	public void testEval() throws Exception {
+		server.setEvaluator(expression -> new REXPDouble(expression.length()));
+		try(var session = new Rsession(RServerInstance.builder().url(server.getUrl()).build())) {
+			Assert.assertEquals(5d, session.eval("1 + 2").asDouble(), 0d);
+		}
+	}
+	
+	@Test
+	public void testEvalAllWithMixedResults() throws Exception {
+		server.setEvaluator(expression -> {
+			var replies = new ArrayList<REXP>();
+			var quoted = QUOTED.matcher(expression.substring(0, expression.indexOf("), function(")));
+			while(quoted.find()) {
+				String batched = quoted.group(1).replace("\\'", "'");
+				replies.add(batched.startsWith("stop(") 
+					? new REXPGenericVector(new RList(new REXP[]{new REXPString("boom")}, new String[]{"error"}))
+					: new REXPGenericVector(new RList(new REXP[]{new REXPDouble(batched.length())}, new String[]{"value"})));
+			}
+			return new REXPGenericVector(new RList(replies));
+		});
+		try(var session = new Rsession(RServerInstance.builder().url(server.getUrl()).build())) {
+			long commands = server.getCommands();
+			var results = session.evalAll(List.of("1 + 2", "stop('boom')", "x"));
+			Assert.assertEquals(1l, server.getCommands() - commands);
+			Assert.assertEquals(3, results.size());
+			Assert.assertFalse(results.get(0).isError());
+			Assert.assertEquals(5d, results.get(0).getValueOrThrow().asDouble(), 0d);
+			Assert.assertTrue(results.get(1).isError());
+			Assert.assertEquals("stop('boom')", results.get(1).getExpression());
+			Assert.assertEquals("boom", results.get(1).getError());
+			Assert.assertThrows(REngineException.class, results.get(1)::getValueOrThrow);
+			Assert.assertEquals(1d, results.get(2).getValue().asDouble(), 0d);
+			Assert.assertTrue(session.evalAll(List.of()).isEmpty());
+			Assert.assertEquals(1l, server.getCommands() - commands);
+		}
+	}
+	
+	@Test
+	public void testEvalAllBatchFailure() throws Exception {
+		server.setEvaluator(expression -> {
+			throw new IllegalStateException("parse error");
+		});
+		try(var session = new Rsession(RServerInstance.builder().url(server.getUrl()).build())) {
+			Assert.assertThrows(REngineException.class, () -> session.evalAll(List.of("1", "2")));
+		}
+	}
+	
+	@Test
+	public void testAssignExactlyOneChunk() throws Exception {
+		var expressions = recordExpressions();
+		try(var session = new Rsession(RServerInstance.builder().url(server.getUrl()).build())) {
+			session.assign("x", new double[Rsession.ASSIGN_CHUNK_SIZE]);
+			Assert.assertEquals(Rsession.ASSIGN_CHUNK_SIZE, server.getVariables().get("x").length());
+			Assert.assertTrue(expressions.isEmpty());
+		}
+	}
+	
+	@Test
+	public void testAssignOneChunkPlusOne() throws Exception {
+		var expressions = recordExpressions();
+		int length = Rsession.ASSIGN_CHUNK_SIZE + 1;
+		var values = new int[length];
+		values[length - 1] = 7;
+		try(var session = new Rsession(RServerInstance.builder().url(server.getUrl()).build())) {
+			session.assign("x", values);
+			Assert.assertEquals(List.of(
+				"x <- integer(" + length + ")",
+				"x[1:" + Rsession.ASSIGN_CHUNK_SIZE + "] <- .rserver.chunk",
+				"x[" + length + ":" + length + "] <- .rserver.chunk",
+				"rm(.rserver.chunk)"), expressions);
+			Assert.assertArrayEquals(new int[]{7}, server.getVariables().get(".rserver.chunk").asIntegers());
+			Assert.assertFalse(server.getVariables().containsKey("x"));
+		}
+	}
+	
+	@Test
+	public void testAssignEmpty() throws Exception {
+		var expressions = recordExpressions();
+		try(var session = new Rsession(RServerInstance.builder().url(server.getUrl()).build())) {
+			session.assign("x", new String[0]);
+			Assert.assertEquals(0, server.getVariables().get("x").length());
+			Assert.assertTrue(expressions.isEmpty());
+		}
+	}
+	
+	@Test
+	public void testReadAtChunkBoundaries() throws Exception {
+		var slices = serveSlices(Rsession.READ_CHUNK_SIZE + 1);
+		try(var session = new Rsession(RServerInstance.builder().url(server.getUrl()).build())) {
+			var target = new double[Rsession.READ_CHUNK_SIZE + 2];
+			session.read("x", 0, target, 1, Rsession.READ_CHUNK_SIZE);
+			Assert.assertEquals(List.of("x[1:" + Rsession.READ_CHUNK_SIZE + "]"), slices);
+			Assert.assertEquals(1d, target[1], 0d);
+			Assert.assertEquals(Rsession.READ_CHUNK_SIZE, target[Rsession.READ_CHUNK_SIZE], 0d);
+			slices.clear();
+			session.read("x", 0, target, 0, Rsession.READ_CHUNK_SIZE + 1);
+			Assert.assertEquals(List.of("x[1:" + Rsession.READ_CHUNK_SIZE + "]", "x[" + (Rsession.READ_CHUNK_SIZE + 1) + ":" + (Rsession.READ_CHUNK_SIZE + 1) + "]"), slices);
+			Assert.assertEquals(Rsession.READ_CHUNK_SIZE + 1, target[Rsession.READ_CHUNK_SIZE], 0d);
+			slices.clear();
+			session.read("x", 5, new int[0], 0, 0);
+			Assert.assertTrue(slices.isEmpty());
+		}
+	}
+	
+	@Test
+	public void testReadIntoBuffer() throws Exception {
+		var slices = serveSlices(Rsession.READ_CHUNK_SIZE + 1);
+		try(var session = new Rsession(RServerInstance.builder().url(server.getUrl()).build())) {
+			var target = DoubleBuffer.allocate(Rsession.READ_CHUNK_SIZE + 1);
+			Assert.assertEquals(Rsession.READ_CHUNK_SIZE + 1, session.read("x", target));
+			Assert.assertEquals(2, slices.size());
+			Assert.assertEquals(Rsession.READ_CHUNK_SIZE + 1, target.get(Rsession.READ_CHUNK_SIZE), 0d);
+			slices.clear();
+			Assert.assertThrows(BufferOverflowException.class, () -> session.read("x", DoubleBuffer.allocate(Rsession.READ_CHUNK_SIZE)));
+			Assert.assertTrue(slices.isEmpty());
+		}
+	}
+	
+	@Test
+	public void testReadColumnsAtChunkBoundary() throws Exception {
+		var slices = serveSlices(Rsession.READ_CHUNK_SIZE + 1);
+		var chunks = new ArrayList<String>();
+		try(var session = new Rsession(RServerInstance.builder().url(server.getUrl()).build())) {
+			session.readColumns("df", (column, offset, chunk) -> chunks.add(column + "@" + offset + "+" + chunk.length()));
+			Assert.assertEquals(List.of(
+				"a@0+" + Rsession.READ_CHUNK_SIZE, "a@" + Rsession.READ_CHUNK_SIZE + "+1",
+				"b@0+" + Rsession.READ_CHUNK_SIZE, "b@" + Rsession.READ_CHUNK_SIZE + "+1"), chunks);
+			Assert.assertEquals("df[[2]][" + (Rsession.READ_CHUNK_SIZE + 1) + ":" + (Rsession.READ_CHUNK_SIZE + 1) + "]", slices.get(3));
+		}
+	}
+	
+	@Test
+	public void testReceiveIntoSmallBuffer() throws Exception {
+		server.getFiles().put("data.bin", new byte[1025]);
+		try(var session = new Rsession(RServerInstance.builder().url(server.getUrl()).build())) {
+			Assert.assertThrows(BufferOverflowException.class, () -> session.receiveFile("data.bin", ByteBuffer.allocate(1024)));
+			Assert.assertThrows(BufferOverflowException.class, () -> session.receiveFile("data.bin", ByteBuffer.allocateDirect(1024)));
+			var exact = ByteBuffer.allocate(1025);
+			Assert.assertEquals(1025, session.receiveFile("data.bin", exact));
+			Assert.assertFalse(exact.hasRemaining());
+		}
+	}
+	
+	private static final Pattern SLICE = Pattern.compile("^(.+)\\[(\\d+):(\\d+)\\]$");
+	
+	/** Serves a vector x and a data.frame df with columns a and b of the given length, valued by their position from
+	 * 1, and records the slices read
+	 */
+	private List<String> serveSlices(int length) {
+		var slices = new CopyOnWriteArrayList<String>();
+		server.setEvaluator(expression -> {
+			var slice = SLICE.matcher(expression);
+			if(slice.matches()) {
+				slices.add(expression);
+				int from = Integer.parseInt(slice.group(2)), to = Integer.parseInt(slice.group(3));
+				return new REXPDouble(IntStream.rangeClosed(from, to).asDoubleStream().toArray());
+			}else if(expression.equals("as.double(length(x))") || expression.equals("as.double(nrow(df))")) {
+				return new REXPDouble(length);
+			}else if(expression.equals("names(df)")) {
+				return new REXPString(new String[]{"a", "b"});
+			}
+			throw new IllegalArgumentException(expression);
+		});
+		return slices;
+	}
+	
+	@Test
+	public void testCloseWithPendingAsyncEval() throws Exception {
+		var expressions = new CopyOnWriteArrayList<String>();
+		var evaluating = new CountDownLatch(1);
+		server.setEvaluator(expression -> {
+			expressions.add(expression);
+			return expression.equals("getwd()") ? new REXPString("/tmp/rserver") : new REXPDouble(1d);
+		});
+		server.setEvalLatency(expression -> {
+			if(!expression.equals("slow")) {
+				return Duration.ZERO;
+			}
+			evaluating.countDown();
+			return Duration.ofMillis(300);
+		});
+		try(var pool = new RConnectionPool(new InstanceResources(RServerInstance.builder().url(server.getUrl()).pooledConnections(true).build()), Runnable::run)) {
+			var session = new Rsession(pool, null);
+			var slow = session.evalAsync("slow");
+			var queued = session.evalAsync("queued");
+			Assert.assertTrue(evaluating.await(5, TimeUnit.SECONDS));
+			session.close();
+			Assert.assertEquals(1d, slow.getNow(null).asDouble(), 0d);
+			Assert.assertTrue(queued.isCompletedExceptionally());
+			Assert.assertFalse(expressions.contains("queued"));
+			Assert.assertTrue(expressions.get(expressions.size() - 1).startsWith("setwd("));
+			Assert.assertEquals(1, pool.getIdleConnections());
+			try(var next = new Rsession(pool, null)) {
+				Assert.assertEquals(1d, next.eval("1").asDouble(), 0d);
+			}
+			Assert.assertEquals(1l, server.getAcceptedConnections());
+		}
+	}
+	
+	@Test(timeout = 10000)
+	public void testAbortWhileClosing() throws Exception {
+		var evaluating = new CountDownLatch(1);
+		server.setEvaluator(expression -> expression.equals("getwd()") ? new REXPString("/tmp/rserver") : new REXPDouble(1d));
+		server.setEvalLatency(expression -> {
+			if(!expression.equals("stuck")) {
+				return Duration.ZERO;
+			}
+			evaluating.countDown();
+			return Duration.ofSeconds(30);
+		});
+		try(var pool = new RConnectionPool(new InstanceResources(RServerInstance.builder().url(server.getUrl()).pooledConnections(true).build()), Runnable::run)) {
+			var session = new Rsession(pool, null);
+			var stuck = session.evalAsync("stuck");
+			Assert.assertTrue(evaluating.await(5, TimeUnit.SECONDS));
+			var closing = new Thread(session::close);
+			closing.start();
+			while(closing.getState() != Thread.State.WAITING) {
+				Thread.onSpinWait();
+			}
+			session.abort();
+			closing.join(5000);
+			Assert.assertFalse(closing.isAlive());
+			Assert.assertTrue(stuck.isCompletedExceptionally());
+			Assert.assertEquals(0, pool.getLiveConnections());
+			Assert.assertEquals(0, pool.getIdleConnections());
+		}
+	}
+	
+	/** Expressions evaluated by the server from now on */
+	private List<String> recordExpressions() {
+		var expressions = new CopyOnWriteArrayList<String>();
+		server.setEvaluator(expression -> {
+			expressions.add(expression);
+			return new REXPNull();
+		});
+		return expressions;
+	}
+	
+	private static final Pattern QUOTED = Pattern.compile("'((?:[^'\\\\]|\\\\.)*)'");
+	
+	@Test
+	public void testFileRoundTrip() throws Exception {
+		byte[] content = new byte[3 * 1024 * 1024 + 17];
+		new Random(1).nextBytes(content);
+		var local = File.createTempFile("rsession-", ".bin");
+		var received = File.createTempFile("rsession-", ".bin");
+		try(var session = new Rsession(RServerInstance.builder().url(server.getUrl()).build())) {
+			Files.write(local.toPath(), content);
+			session.sendFile(local, "data.bin");
+			Assert.assertArrayEquals(content, server.getFiles().get("data.bin"));
+			session.receiveFile(received, "data.bin");
+			Assert.assertArrayEquals(content, Files.readAllBytes(received.toPath()));
+			var buffer = ByteBuffer.allocateDirect(content.length);
+			Assert.assertEquals(content.length, session.receiveFile("data.bin", buffer));
+			Assert.assertEquals(ByteBuffer.wrap(content), buffer.flip());
+		} finally {
+			local.delete();
+			received.delete();
+		}
+	}
+
+	@Test
+	public void testCompressedReceive() throws Exception {
+		byte[] content = "x,y\n1,2\n".repeat(1000).getBytes();
+		var gzipped = new ByteArrayOutputStream();
+		try(var os = new GZIPOutputStream(gzipped)) {
+			os.write(content);
+		}
+		// the fake server does not run the R side gzip, so the compressed copy is already there
+		server.getFiles().put("data.csv.gz", gzipped.toByteArray());
+		var received = File.createTempFile("rsession-", ".csv");
+		try(var session = new Rsession(RServerInstance.builder().url(server.getUrl()).build())) {
+			session.receiveFile(received, "data.csv", true);
+			Assert.assertArrayEquals(content, Files.readAllBytes(received.toPath()));
+			Assert.assertFalse(server.getFiles().containsKey("data.csv.gz"));
+		} finally {
+			received.delete();
+		}
+	}
+
+	@Test
+	public void testCompressedRoundTrip() throws Exception {
+		server.setEvaluator(this::copyRemote);
+		byte[] content = new byte[256 * 1024 + 3];
+		new Random(2).nextBytes(content);
+		var local = File.createTempFile("rsession-", ".bin");
+		var received = File.createTempFile("rsession-", ".bin");
+		try(var session = new Rsession(RServerInstance.builder().url(server.getUrl()).build())) {
+			Files.write(local.toPath(), content);
+			session.sendFile(local, "data.bin", true);
+			Assert.assertArrayEquals(content, server.getFiles().get("data.bin"));
+			Assert.assertFalse(server.getFiles().containsKey("data.bin.gz"));
+			session.receiveFile(received, "data.bin", true);
+			Assert.assertArrayEquals(content, Files.readAllBytes(received.toPath()));
+			Assert.assertFalse(server.getFiles().containsKey("data.bin.gz"));
+		} finally {
+			local.delete();
+			received.delete();
+		}
+	}
+	
+	@Test
+	public void testCompressionThreshold() throws Exception {
+		server.setEvaluator(this::copyRemote);
+		byte[] small = "small".getBytes(), large = "x,y\n1,2\n".repeat(1000).getBytes();
+		var local = File.createTempFile("rsession-", ".csv");
+		var received = File.createTempFile("rsession-", ".csv");
+		try(var session = new Rsession(RServerInstance.builder().url(server.getUrl()).compressionThreshold(1024l).build())) {
+			Files.write(local.toPath(), large);
+			session.sendFile(local, "large.csv");
+			Assert.assertArrayEquals(large, server.getFiles().get("large.csv"));
+			session.receiveFile(received, "large.csv");
+			Assert.assertArrayEquals(large, Files.readAllBytes(received.toPath()));
+			Assert.assertEquals(2, remoteCopies.get());
+			Files.write(local.toPath(), small);
+			session.sendFile(local, "small.csv");
+			Assert.assertArrayEquals(small, server.getFiles().get("small.csv"));
+			session.receiveFile(received, "small.csv");
+			Assert.assertArrayEquals(small, Files.readAllBytes(received.toPath()));
+			Assert.assertEquals(2, remoteCopies.get());
+		} finally {
+			local.delete();
+			received.delete();
+		}
+	}
+	
+	private static final Pattern COPY_REMOTE = Pattern.compile("input <- (gzfile|file)\\('([^']+)', 'rb'\\); output <- (gzfile|file)\\('([^']+)', 'wb'\\)"),
+		FILE_SIZE = Pattern.compile("file\\.info\\('([^']+)'\\)\\$size");
+	
+	private final AtomicInteger remoteCopies = new AtomicInteger();
+	
+	/** Emulates the R side of compressed transfers: gzipping or gunzipping files and reading their size */
+	private REXP copyRemote(String expression) {
+		var size = FILE_SIZE.matcher(expression);
+		if(size.find()) {
+			return new REXPDouble(server.getFiles().get(size.group(1)).length);
+		}
+		var copy = COPY_REMOTE.matcher(expression);
+		if(!copy.find()) {
+			return new REXPNull();
+		}
+		remoteCopies.incrementAndGet();
+		byte[] source = server.getFiles().get(copy.group(2));
+		try {
+			if(copy.group(1).equals("gzfile")) {
+				try(var is = new GZIPInputStream(new ByteArrayInputStream(source))) {
+					server.getFiles().put(copy.group(4), is.readAllBytes());
+				}
+			}else {
+				var gzipped = new ByteArrayOutputStream();
+				try(var os = new GZIPOutputStream(gzipped)) {
+					os.write(source);
+				}
+				server.getFiles().put(copy.group(4), gzipped.toByteArray());
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		return new REXPNull();
+	}
+	
+}
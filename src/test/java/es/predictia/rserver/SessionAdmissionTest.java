@@ -0,0 +1,205 @@
+package es.predictia.rserver;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SessionAdmissionTest {
+
+	private FakeRserve server;
+	
+	private RSessionFactory factory;
+	
+	private final CountDownLatch holding = new CountDownLatch(1), release = new CountDownLatch(1);
+	
+	@Before
+	public void setUp() throws Exception {
+		server = new FakeRserve();
+		factory = new RSessionFactory();
+		factory.setAvailableInstances(List.of(RServerInstance.builder().url(server.getUrl()).resources(1).build()));
+	}
+	
+	@After
+	public void tearDown() throws Exception {
+		release.countDown();
+		server.close();
+	}
+	
+	@Test
+	public void testPriorityOrder() throws Exception {
+		holdInstance();
+		var started = Collections.synchronizedList(new ArrayList<String>());
+		var low = recording("low", started);
+		var high = recording("high", started);
+		var lowLater = recording("lowLater", started);
+		low.run(factory, RSessionRequest.builder().priority(0).build());
+		high.run(factory, RSessionRequest.builder().priority(5).build());
+		lowLater.run(factory, RSessionRequest.builder().priority(0).build());
+		release.countDown();
+		RWorkers.wait(10, TimeUnit.SECONDS, low, high, lowLater);
+		Assert.assertEquals(List.of("high", "low", "lowLater"), started);
+	}
+	
+	@Test
+	public void testRequestChangedWhileQueued() throws Exception {
+		var metrics = new InMemoryRServerMetrics();
+		factory.setMetrics(metrics);
+		holdInstance();
+		var request = RSessionRequest.builder().priority(0).build();
+		var changed = new SimpleRWorker(session -> {}).run(factory, request);
+		var other = new SimpleRWorker(session -> {});
+		other.run(factory, RSessionRequest.builder().priority(1).build());
+		request.setPriority(5);
+		request.setRequestedResources(2);
+		changed.cancel(true);
+		Assert.assertEquals(1d, metrics.getGauge(RServerMetrics.QUEUE_SIZE, null).getAsDouble(), 0d);
+		release.countDown();
+		other.getCompletion().get(5, TimeUnit.SECONDS);
+		Assert.assertFalse(other.anyErrors());
+	}
+	
+	@Test
+	public void testBackfillOnlyBeforeShadowTime() throws Exception {
+		factory.setAvailableInstances(List.of(RServerInstance.builder().url(server.getUrl()).resources(2).build()));
+		var holder = new SimpleRWorker(session -> {
+			holding.countDown();
+			release.await();
+		});
+		holder.run(factory, RSessionRequest.builder().requestedTimeAndUnit(10l, TimeUnit.MINUTES).build());
+		Assert.assertTrue(holding.await(5, TimeUnit.SECONDS));
+		var started = Collections.synchronizedList(new ArrayList<String>());
+		var blocked = recording("blocked", started);
+		var outlasting = recording("outlasting", started);
+		var backfilled = recording("backfilled", started);
+		blocked.run(factory, RSessionRequest.builder().requestedResources(2).priority(5).build());
+		outlasting.run(factory, RSessionRequest.builder().requestedTimeAndUnit(1l, TimeUnit.HOURS).build());
+		backfilled.run(factory, RSessionRequest.builder().requestedTimeAndUnit(1l, TimeUnit.MINUTES).build());
+		backfilled.getCompletion().get(5, TimeUnit.SECONDS);
+		Assert.assertEquals(List.of("backfilled"), started);
+		Assert.assertFalse(outlasting.isStarted());
+		release.countDown();
+		RWorkers.wait(10, TimeUnit.SECONDS, holder, blocked, outlasting);
+		Assert.assertEquals(List.of("backfilled", "blocked", "outlasting"), started);
+	}
+	
+	@Test
+	public void testOverrunSessionMakesRoomForQueued() throws Exception {
+		var overrunning = new SimpleRWorker(session -> {
+			holding.countDown();
+			release.await();
+		});
+		var overrun = overrunning.run(factory, RSessionRequest.builder().requestedTimeAndUnit(200l, TimeUnit.MILLISECONDS).build());
+		Assert.assertTrue(holding.await(5, TimeUnit.SECONDS));
+		var queued = new SimpleRWorker(session -> session.eval("1"));
+		queued.run(factory, RSessionRequest.createDefaultRequest()).get(5, TimeUnit.SECONDS);
+		Assert.assertFalse(queued.anyErrors());
+		Assert.assertTrue(overrun.isCancelled());
+		Assert.assertFalse(overrunning.isFinished());
+	}
+	
+	@Test
+	public void testFinishedSessionsLeaveNoExpiryTimers() throws Exception {
+		for(int i = 0; i < 3; i++) {
+			var worker = new SimpleRWorker(session -> Assert.assertEquals(1, factory.getPendingTimers()));
+			worker.run(factory, RSessionRequest.createDefaultRequest()).get(5, TimeUnit.SECONDS);
+			Assert.assertFalse(worker.anyErrors());
+		}
+	}
+	
+	@Test
+	public void testQueueTimeout() throws Exception {
+		holdInstance();
+		var waiting = new SimpleRWorker(session -> {});
+		var future = waiting.run(factory, RSessionRequest.builder().maxQueueTimeAndUnit(100l, TimeUnit.MILLISECONDS).build());
+		try {
+			future.get(5, TimeUnit.SECONDS);
+			Assert.fail("Queue timeout expected");
+		} catch (ExecutionException e) {
+			Assert.assertTrue(e.getCause() instanceof TimeoutException);
+		}
+		waiting.getCompletion().get(1, TimeUnit.SECONDS);
+		Assert.assertTrue(waiting.anyErrors());
+		Assert.assertFalse(waiting.isStarted());
+	}
+	
+	@Test
+	public void testAdmittedRequestsLeaveNoQueueTimers() throws Exception {
+		holdInstance();
+		var timers = Collections.synchronizedList(new ArrayList<Integer>());
+		var queued = new SimpleRWorker[3];
+		for(int i = 0; i < queued.length; i++) {
+			queued[i] = new SimpleRWorker(session -> timers.add(factory.getPendingTimers()));
+			queued[i].run(factory, RSessionRequest.createDefaultRequest());
+		}
+		Assert.assertEquals(4, factory.getPendingTimers());
+		release.countDown();
+		RWorkers.wait(10, TimeUnit.SECONDS, queued);
+		// its own expiry and the queue timeouts of the requests still waiting
+		Assert.assertEquals(List.of(3, 2, 1), timers);
+	}
+	
+	@Test
+	public void testUndeclaredWarmupProfileFailsAtOnce() throws Exception {
+		var worker = new SimpleRWorker(session -> {});
+		var future = worker.run(factory, RSessionRequest.builder().warmupProfile("missing").build());
+		try {
+			future.get(5, TimeUnit.SECONDS);
+			Assert.fail("Request without eligible instances expected to fail");
+		} catch (ExecutionException e) {
+			Assert.assertTrue(e.getCause() instanceof IllegalArgumentException);
+		}
+		Assert.assertEquals(0, server.getAcceptedConnections());
+	}
+	
+	@Test(timeout = 30000)
+	public void testLongQueueOfBlockedRequests() throws Exception {
+		holdInstance();
+		var futures = new ArrayList<CompletableFuture<RWorker>>();
+		for(int i = 0; i < 16000; i++) {
+			futures.add(new SimpleRWorker(session -> {}).run(factory, RSessionRequest.builder().priority(i % 3).build()));
+		}
+		futures.forEach(future -> future.cancel(true));
+		release.countDown();
+		var last = new SimpleRWorker(session -> {});
+		last.run(factory, RSessionRequest.createDefaultRequest()).get(5, TimeUnit.SECONDS);
+		Assert.assertFalse(last.anyErrors());
+	}
+	
+	@Test
+	public void testExecutionModeChangeKeepsLaunchedWorkers() throws Exception {
+		holdInstance();
+		var queued = new SimpleRWorker(session -> session.eval("1"));
+		queued.run(factory, RSessionRequest.createDefaultRequest());
+		factory.setExecutionMode(RSessionFactory.ExecutionMode.PLATFORM_THREADS);
+		release.countDown();
+		queued.getCompletion().get(5, TimeUnit.SECONDS);
+		Assert.assertFalse(queued.anyErrors());
+		var next = new SimpleRWorker(session -> session.eval("1"));
+		next.run(factory, RSessionRequest.createDefaultRequest()).get(5, TimeUnit.SECONDS);
+		Assert.assertFalse(next.anyErrors());
+	}
+	
+	/** Runs a worker taking the only resource of the instance until {@link #release} */
+	private void holdInstance() throws Exception {
+		new SimpleRWorker(session -> {
+			holding.countDown();
+			release.await();
+		}).run(factory, RSessionRequest.createDefaultRequest());
+		Assert.assertTrue(holding.await(5, TimeUnit.SECONDS));
+	}
+	
+	private static SimpleRWorker recording(String name, List<String> started) {
+		return new SimpleRWorker(session -> started.add(name));
+	}
+	
+}